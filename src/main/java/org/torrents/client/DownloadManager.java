@@ -1,34 +1,80 @@
 package org.torrents.client;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.client.viewmodel.ClientViewModel;
+import org.torrents.shared.ProtocolUtil;
 import org.torrents.shared.schemas.ChunkData;
 import org.torrents.shared.schemas.FileInfo;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Менеджер загрузки файлов - управляет скачиванием файлов по частям
  */
 public class DownloadManager {
     private static final Logger logger = LoggerFactory.getLogger(ClientViewModel.class);
-    private static final int CHUNK_SIZE = 256 * 1024; // 256KB на часть
+    private static final int CHUNK_SIZE = ProtocolUtil.PART_SIZE; // 256KB на часть
+    // Недокачанный файл лежит рядом с итоговым под этим суффиксом
+    private static final String PART_SUFFIX = ".part";
+    // Рядом с .part файлом хранится состояние загрузки, чтобы продолжить её после перезапуска
+    private static final String STATE_SUFFIX = ".state";
+    // Сколько вариантов "name (N).ext" пробовать, если имя готового файла занято
+    private static final int MAX_NAME_SUFFIX = 1000;
+    // Состояние сохраняется не чаще, чем раз в этот интервал (и при старте загрузки)
+    private static final long STATE_SAVE_INTERVAL_MS = 1000;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // Индекс раздаваемых файлов в каталоге загрузок: после перезапуска файлы не хешируются заново
+    private static final String SEED_INDEX_FILE = ".seed-index.json";
+    private static final int VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    // MessageDigest не потокобезопасен и не дёшев в создании: по экземпляру на поток
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
     private final Path downloadDir;
     // Map для учета загружаемых файлов
     private final Map<String, FileDownload> activeDownloads = new ConcurrentHashMap<>();
-    // Map доступных локально файлов
-    private final Map<String, FileInfo> localFiles = new ConcurrentHashMap<>();
+    // Map доступных локально файлов; сохраняется в SEED_INDEX_FILE
+    private final Map<String, LocalFile> localFiles = new ConcurrentHashMap<>();
     private DownloadProgressListener progressListener;
+    // Проверка и запись полученных частей: по потоку на ядро, очередь ограничена
+    private final ExecutorService verifyExecutor = new ThreadPoolExecutor(VERIFY_THREADS, VERIFY_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(VERIFY_THREADS * 4),
+            Thread.ofPlatform().name("chunk-verify-", 0).daemon(true).factory(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
 
     public DownloadManager(String downloadDir) {
         this.downloadDir = Paths.get(downloadDir);
@@ -37,116 +83,272 @@ public class DownloadManager {
         } catch (IOException e) {
             throw new RuntimeException("Failed to create download directory", e);
         }
+        loadSeedIndex();
+        loadSavedDownloads();
+    }
+
+    /**
+     * Раздаваемый файл: метаданные с checksum частей, путь и размер/время изменения на момент хеширования
+     */
+    record LocalFile(FileInfo fileInfo, String path, long size, long modifiedMillis) {
+    }
+
+    private static LocalFile localFile(FileInfo fileInfo, Path path) throws IOException {
+        return new LocalFile(fileInfo, path.toAbsolutePath().toString(), Files.size(path),
+                Files.getLastModifiedTime(path).toMillis());
+    }
+
+    /**
+     * Загрузить индекс раздаваемых файлов. Файл считается неизменным, если совпадают размер и время
+     * изменения, - тогда его checksum берутся из индекса без повторного чтения
+     */
+    private void loadSeedIndex() {
+        Path indexPath = downloadDir.resolve(SEED_INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        List<LocalFile> entries;
+        try {
+            entries = objectMapper.readValue(indexPath.toFile(), new TypeReference<List<LocalFile>>() {});
+        } catch (IOException e) {
+            logger.warn("Failed to read seed index {}: {}", indexPath, e.getMessage());
+            return;
+        }
+        int dropped = 0;
+        for (LocalFile entry : entries) {
+            Path path = Paths.get(entry.path());
+            try {
+                if (Files.size(path) == entry.size()
+                        && Files.getLastModifiedTime(path).toMillis() == entry.modifiedMillis()) {
+                    localFiles.put(entry.fileInfo().fileId(), entry);
+                    continue;
+                }
+                logger.warn("Local file {} changed since it was indexed, no longer seeding it", path);
+            } catch (IOException e) {
+                logger.warn("Local file {} is unavailable, no longer seeding it", path);
+            }
+            dropped++;
+        }
+        logger.info("Loaded seed index: {} files", localFiles.size());
+        if (dropped > 0) {
+            saveSeedIndex();
+        }
+    }
+
+    /**
+     * Сохранить индекс раздаваемых файлов (через временный файл и атомарное переименование)
+     */
+    private synchronized void saveSeedIndex() {
+        Path indexPath = downloadDir.resolve(SEED_INDEX_FILE);
+        Path tmp = indexPath.resolveSibling(SEED_INDEX_FILE + ".tmp");
+        try {
+            objectMapper.writeValue(tmp.toFile(), new ArrayList<>(localFiles.values()));
+            try {
+                Files.move(tmp, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to save seed index {}: {}", indexPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Состояние незавершённой загрузки: метаданные файла и маска уже записанных частей (Base64)
+     */
+    record DownloadState(FileInfo fileInfo, String receivedParts) {
+    }
+
+    /**
+     * Восстановить незавершённые загрузки по сохранённым рядом с .part файлами состояниям
+     */
+    private void loadSavedDownloads() {
+        try (DirectoryStream<Path> states = Files.newDirectoryStream(downloadDir, "*" + PART_SUFFIX + STATE_SUFFIX)) {
+            for (Path statePath : states) {
+                String stateName = statePath.getFileName().toString();
+                Path partPath = statePath.resolveSibling(stateName.substring(0, stateName.length() - STATE_SUFFIX.length()));
+                try {
+                    if (!Files.exists(partPath)) {
+                        logger.warn("Partial file {} is missing, dropping saved download state", partPath);
+                        Files.deleteIfExists(statePath);
+                        continue;
+                    }
+                    DownloadState state = objectMapper.readValue(statePath.toFile(), DownloadState.class);
+                    BitSet received = BitSet.valueOf(Base64.getDecoder().decode(state.receivedParts()));
+                    FileDownload download = new FileDownload(state.fileInfo(), partPath, statePath, received);
+                    activeDownloads.put(state.fileInfo().fileId(), download);
+                    logger.info("Resumed download: {} ({}/{} parts)", state.fileInfo().filename(),
+                            download.receivedParts(), state.fileInfo().partsCount());
+                    // Процесс мог остановиться между записью последней части и переименованием
+                    if (download.isComplete() && download.completed.compareAndSet(false, true)) {
+                        completeDownload(download);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to resume download from {}: {}", statePath, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to scan {} for unfinished downloads: {}", downloadDir, e.getMessage());
+        }
     }
 
     /**
      * Начать загрузку файла
      */
-    public synchronized void startDownload(FileInfo fileInfo) {
+    public synchronized void startDownload(FileInfo fileInfo) throws IOException {
         // Если файл уже загружается, игнорируем запрос
         if (activeDownloads.containsKey(fileInfo.fileId())) {
             logger.debug("Download already active for file: {}", fileInfo.filename());
             return;
         }
 
-        FileDownload download = new FileDownload(fileInfo);
+        Path partPath = partPath(fileInfo);
+        FileDownload download = new FileDownload(fileInfo, partPath,
+                partPath.resolveSibling(partPath.getFileName() + STATE_SUFFIX), new BitSet(fileInfo.partsCount()));
+        download.saveState(true);
         activeDownloads.put(fileInfo.fileId(), download);
         logger.info("Started download: {} ({} bytes, {} parts)", fileInfo.filename(), fileInfo.size(), fileInfo.partsCount());
     }
 
     /**
-     * Сохранить полученную часть файла
+     * Путь .part файла: в имени есть fileId, чтобы разные файлы с одинаковым именем не делили
+     * один .part файл и одно состояние. fileId приходит от пиров, поэтому в имени только безопасные символы
      */
-    public synchronized void saveChunk(ChunkData chunk) throws IOException {
+    private Path partPath(FileInfo fileInfo) {
+        String safeId = fileInfo.fileId().replaceAll("[^A-Za-z0-9_-]", "_");
+        return downloadDir.resolve(fileInfo.filename() + "." + safeId + PART_SUFFIX);
+    }
+
+    /**
+     * Сохранить полученную часть файла.
+     * Проверка checksum и запись на диск выполняются в пуле verifyExecutor, поток чтения сокета
+     * только ставит часть в очередь. Если очередь полна, часть проверяется в вызывающем потоке -
+     * это ограничивает число частей, ждущих проверки в памяти
+     */
+    public void saveChunk(ChunkData chunk) {
         FileDownload download = activeDownloads.get(chunk.fileId());
         if (download == null) {
             logger.info("No active download for file: {}", chunk.fileId());
             return;
         }
+        verifyExecutor.execute(() -> verifyAndWrite(download, chunk.partIndex(), chunk.data()));
+    }
 
-        // Сохраняем чанк
-        download.saveChunk(chunk.partIndex(), chunk.data());
-        logger.info("Saved chunk {}/{} for {}", chunk.partIndex(), download.fileInfo.partsCount(), download.fileInfo.filename());
+    /**
+     * Часть проверяется по checksum и сразу записывается на своё место в .part файле,
+     * в памяти остаётся только отметка о ней
+     */
+    private void verifyAndWrite(FileDownload download, int partIndex, byte[] data) {
+        if (download.hasPart(partIndex)) {
+            logger.debug("Chunk {} of {} already saved", partIndex, download.fileInfo.filename());
+            return;
+        }
+
+        try {
+            if (!isValidChunk(download, partIndex, data)) {
+                // Повреждённая часть перезапрашивается сразу, не дожидаясь остальных
+                onCorruptedChunk(download, partIndex);
+                return;
+            }
+            download.writePart(partIndex, data);
+            download.saveState(false);
+        } catch (IOException e) {
+            // Дубликат части мог прийти, пока другой поток завершал загрузку и закрывал канал
+            if (download.completed.get() || download.hasPart(partIndex)) {
+                logger.debug("Ignoring duplicate chunk {} of {}: {}", partIndex, download.fileInfo.filename(), e.toString());
+                return;
+            }
+            logger.error("Failed to save chunk {} of {}: {}", partIndex, download.fileInfo.filename(), e.getMessage());
+            failDownload(download, e);
+            return;
+        }
+        logger.info("Saved chunk {}/{} for {}", partIndex, download.fileInfo.partsCount(), download.fileInfo.filename());
 
         // Уведомляем слушателя о прогрессе
         if (progressListener != null) {
-            progressListener.onProgressUpdate(chunk.fileId(), download.fileInfo.filename(), download.chunks.size(), download.fileInfo.partsCount());
+            progressListener.onProgressUpdate(download.fileInfo.fileId(), download.fileInfo.filename(), download.receivedParts(), download.fileInfo.partsCount());
         }
 
-        // Если загрузка завершена, собираем файл
-        if (download.isComplete()) {
-            completeDownload(download);
+        // Если загрузка завершена, переименовываем .part файл (ровно один раз)
+        if (download.isComplete() && download.completed.compareAndSet(false, true)) {
+            try {
+                completeDownload(download);
+            } catch (IOException e) {
+                logger.error("Failed to complete download of {}: {}", download.fileInfo.filename(), e.getMessage());
+            }
         }
     }
 
     /**
-     * Завершить загрузку - собрать все части в один файл
+     * Проверить размер и checksum части (если checksum известен)
      */
-    private void completeDownload(FileDownload download) throws IOException {
-        Path filePath = downloadDir.resolve(download.fileInfo.filename());
-
-        // Сначала проверяем все части перед сборкой
-        List<Integer> corruptedParts = new ArrayList<>();
-
-        for (int i = 0; i < download.fileInfo.partsCount(); i++) {
-            byte[] chunk = download.getChunk(i);
-            if (chunk == null) {
-                corruptedParts.add(i);
-                logger.error("Chunk {} is missing for {}", i, download.fileInfo.filename());
-                continue;
-            }
-
-            // Проверяем checksum части (если доступны)
-            if (download.fileInfo.partChecksums() != null) {
-                String expectedChecksum = download.fileInfo.partChecksums().get(i);
-                if (expectedChecksum != null && !expectedChecksum.isEmpty()) {
-                    String actualChecksum = calculateChecksum(chunk);
-                    if (!actualChecksum.equals(expectedChecksum)) {
-                        corruptedParts.add(i);
-                        logger.warn("Checksum mismatch for chunk {} of {}: expected {}, got {}", i,
-                                download.fileInfo.filename(), expectedChecksum, actualChecksum);
-                    }
-                }
-            }
+    private boolean isValidChunk(FileDownload download, int partIndex, byte[] data) {
+        if (partIndex < 0 || partIndex >= download.fileInfo.partsCount() || data == null
+                || data.length != download.partLength(partIndex)) {
+            logger.warn("Chunk {} of {} has unexpected size", partIndex, download.fileInfo.filename());
+            return false;
+        }
+        if (download.fileInfo.partChecksums() == null) {
+            return true;
         }
+        String expectedChecksum = download.fileInfo.partChecksums().get(partIndex);
+        if (expectedChecksum == null || expectedChecksum.isEmpty()) {
+            return true;
+        }
+        String actualChecksum = calculateChecksum(data);
+        if (!actualChecksum.equals(expectedChecksum)) {
+            logger.warn("Checksum mismatch for chunk {} of {}: expected {}, got {}", partIndex,
+                    download.fileInfo.filename(), expectedChecksum, actualChecksum);
+            return false;
+        }
+        return true;
+    }
 
-        // Если есть поврежденные части, удаляем их и уведомляем о необходимости retry
-        if (!corruptedParts.isEmpty()) {
-            if (progressListener != null) {
-                for (Integer partIndex : corruptedParts) {
-                    // Удаляем поврежденную часть из кэша
-                    download.removeCorruptedChunk(partIndex);
-
-                    // Инкрементируем счетчик попыток
-                    download.incrementRetryAttempt(partIndex);
-
-                    // Проверяем, можно ли повторить попытку
-                    if (download.canRetry(partIndex)) {
-                        progressListener.onDownloadError(download.fileInfo.fileId(),
-                                download.fileInfo.filename(), partIndex,
-                                "Chunk corrupted or missing (attempt " + download.getRetryAttempt(partIndex) + "): " + partIndex);
-                    } else {
-                        // Превышен лимит попыток
-                        progressListener.onDownloadError(
-                                download.fileInfo.fileId(), download.fileInfo.filename(), null,
-                                "Failed to download chunk " + partIndex + " after " + download.getRetryAttempt(partIndex) + " attempts");
-                    }
-                }
-            }
-            return; // Не собираем файл, если есть поврежденные части
+    /**
+     * Повреждённая часть не записывается; слушатель сразу получает запрос на повтор
+     */
+    private void onCorruptedChunk(FileDownload download, int partIndex) {
+        // Инкрементируем счетчик попыток
+        download.incrementRetryAttempt(partIndex);
+        if (progressListener == null) {
+            return;
         }
+        // Проверяем, можно ли повторить попытку
+        if (download.canRetry(partIndex)) {
+            progressListener.onDownloadError(download.fileInfo.fileId(),
+                    download.fileInfo.filename(), partIndex,
+                    "Chunk corrupted (attempt " + download.getRetryAttempt(partIndex) + "): " + partIndex);
+        } else {
+            // Превышен лимит попыток
+            progressListener.onDownloadError(
+                    download.fileInfo.fileId(), download.fileInfo.filename(), null,
+                    "Failed to download chunk " + partIndex + " after " + download.getRetryAttempt(partIndex) + " attempts");
+        }
+    }
 
-        // Все части валидны, собираем файл
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-            for (int i = 0; i < download.fileInfo.partsCount(); i++) {
-                byte[] chunk = download.getChunk(i);
-                fos.write(chunk);
+    /**
+     * Завершить загрузку - все части уже на диске, остаётся атомарно переименовать .part файл.
+     * Существующий файл с тем же именем не перезаписывается - загрузка получает имя вида "name (1).ext"
+     */
+    private void completeDownload(FileDownload download) throws IOException {
+        Path filePath;
+        try {
+            download.close();
+            filePath = reserveTargetPath(download.fileInfo.filename());
+            // Заглушка создана нами, поэтому её можно заменить
+            try {
+                try {
+                    Files.move(download.partPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(download.partPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(filePath);
+                throw e;
             }
+            Files.deleteIfExists(download.statePath);
         } catch (IOException e) {
-            // Уведомляем слушателя об ошибке
-            if (progressListener != null) {
-                progressListener.onDownloadError(download.fileInfo.fileId(), download.fileInfo.filename(), null, e.getMessage());
-            }
+            failDownload(download, e);
             throw e;
         }
 
@@ -154,7 +356,8 @@ public class DownloadManager {
 
         // Очистить временные данные и зарегистрировать файл как доступный
         activeDownloads.remove(download.fileInfo.fileId());
-        localFiles.put(download.fileInfo.fileId(), download.fileInfo);
+        localFiles.put(download.fileInfo.fileId(), localFile(download.fileInfo, filePath));
+        saveSeedIndex();
 
         // Уведомляем слушателя о завершении
         if (progressListener != null) {
@@ -163,23 +366,38 @@ public class DownloadManager {
     }
 
     /**
-     * Вычислить SHA-256 checksum для данных
+     * Найти свободное имя для готового файла и сразу занять его пустым файлом,
+     * чтобы параллельная загрузка или пользователь не получили то же имя
      */
-    private String calculateChecksum(byte[] data) throws IOException {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(data);
-            byte[] hashBytes = digest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
+    private Path reserveTargetPath(String filename) throws IOException {
+        int dot = filename.lastIndexOf('.');
+        String base = dot > 0 ? filename.substring(0, dot) : filename;
+        String extension = dot > 0 ? filename.substring(dot) : "";
+        for (int i = 0; i < MAX_NAME_SUFFIX; i++) {
+            Path candidate = downloadDir.resolve(i == 0 ? filename : base + " (" + i + ")" + extension);
+            try {
+                return Files.createFile(candidate);
+            } catch (FileAlreadyExistsException e) {
+                // Имя занято, пробуем следующее
             }
-            return sb.toString();
-        } catch (Exception e) {
-            throw new IOException("Failed to calculate checksum", e);
+        }
+        throw new IOException("No free name for " + filename + " in " + downloadDir);
+    }
+
+    private void failDownload(FileDownload download, IOException e) {
+        // Уведомляем слушателя об ошибке
+        if (progressListener != null) {
+            progressListener.onDownloadError(download.fileInfo.fileId(), download.fileInfo.filename(), null, e.getMessage());
         }
     }
 
+    /**
+     * Вычислить SHA-256 checksum для данных
+     */
+    private String calculateChecksum(byte[] data) {
+        return HexFormat.of().formatHex(SHA256.get().digest(data));
+    }
+
     /**
      * Получить список частей, которые нужно скачать для файла
      */
@@ -195,21 +413,37 @@ public class DownloadManager {
      * Загрузить файл с диска и разбить на части
      */
     public FileInfo addLocalFile(Path filePath) throws IOException {
+        return addLocalFile(filePath, null);
+    }
+
+    /**
+     * Добавить файл для раздачи. Файл не копируется: части читаются с исходного пути.
+     * Если файл уже раздаётся и не изменился, checksum повторно не вычисляются
+     */
+    public FileInfo addLocalFile(Path filePath, HashProgressListener listener) throws IOException {
         if (!Files.exists(filePath)) {
             throw new FileNotFoundException("File not found: " + filePath);
         }
 
+        Path path = filePath.toAbsolutePath();
+        long size = Files.size(path);
+        long modifiedMillis = Files.getLastModifiedTime(path).toMillis();
+        for (LocalFile existing : localFiles.values()) {
+            if (existing.path().equals(path.toString()) && existing.size() == size
+                    && existing.modifiedMillis() == modifiedMillis) {
+                logger.info("Local file {} is already seeded as {}", path, existing.fileInfo().fileId());
+                return existing.fileInfo();
+            }
+        }
+
         String fileId = UUID.randomUUID().toString();
-        long size = Files.size(filePath);
         int partsCount = (int) Math.ceil((double) size / CHUNK_SIZE);
-        String filename = filePath.getFileName().toString();
-
-        // Скопируем файл в директорию загрузок, чтобы клиент мог отдавать части другим пирам
-        Path targetPath = downloadDir.resolve(filename);
-        Files.copy(filePath, targetPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        String filename = path.getFileName().toString();
 
         // Вычисляем checksums для каждой части
-        Map<Integer, String> partChecksums = calculatePartChecksums(targetPath, partsCount, size);
+        long started = System.nanoTime();
+        Map<Integer, String> partChecksums = calculatePartChecksums(path, partsCount, size, listener);
+        long elapsedMs = Math.max(1, (System.nanoTime() - started) / 1_000_000);
 
         // Создаем список частей
         List<Integer> parts = new ArrayList<>();
@@ -218,52 +452,90 @@ public class DownloadManager {
         }
 
         FileInfo fileInfo = new FileInfo(fileId, size, partsCount, parts, partChecksums, filename);
-        localFiles.put(fileId, fileInfo);
+        localFiles.put(fileId, new LocalFile(fileInfo, path.toString(), size, modifiedMillis));
+        saveSeedIndex();
 
-        logger.info("Added local file: {} (id: {}, {} parts)", filename, fileId, partsCount);
+        logger.info("Added local file: {} (id: {}, {} parts, hashed in {} ms, {} MB/s)",
+                filename, fileId, partsCount, elapsedMs, size * 1000 / elapsedMs / (1024 * 1024));
         return fileInfo;
     }
 
     /**
-     * Вычислить контрольные суммы для всех частей файла
+     * Вычислить контрольные суммы для всех частей файла.
+     * Части разбираются потоками по очереди: каждый поток читает свою часть позиционно
+     * из общего канала в собственный буфер и хеширует своим MessageDigest
      */
-    private Map<Integer, String> calculatePartChecksums(Path filePath, int partsCount, long fileSize) throws IOException {
-        Map<Integer, String> checksums = new LinkedHashMap<>();
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-            for (int i = 0; i < partsCount; i++) {
-                // Вычисляем сколько байтов нужно прочитать
-                int toRead = (int) Math.min(CHUNK_SIZE, fileSize - (long) i * CHUNK_SIZE);
-                // offset
-                raf.seek((long) i * CHUNK_SIZE);
-                raf.readFully(buffer, 0, toRead);
-
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                digest.update(buffer, 0, toRead);
-                byte[] hashBytes = digest.digest();
-                StringBuilder sb = new StringBuilder();
-                for (byte b : hashBytes) {
-                    sb.append(String.format("%02x", b));
+    private Map<Integer, String> calculatePartChecksums(Path filePath, int partsCount, long fileSize,
+                                                        HashProgressListener listener) throws IOException {
+        String[] checksums = new String[partsCount];
+        String filename = filePath.getFileName().toString();
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicInteger hashedParts = new AtomicInteger();
+        // Прогресс сообщается примерно на каждый процент, но не чаще, чем раз в часть
+        int reportStep = Math.max(1, partsCount / 100);
+        int threads = Math.max(1, Math.min(HASH_THREADS, partsCount));
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+             ExecutorService hashExecutor = Executors.newFixedThreadPool(threads,
+                     Thread.ofPlatform().name("part-hash-", 0).daemon(true).factory())) {
+            List<Future<?>> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(hashExecutor.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    MessageDigest digest = SHA256.get();
+                    int i;
+                    while ((i = nextPart.getAndIncrement()) < partsCount) {
+                        long offset = (long) i * CHUNK_SIZE;
+                        buffer.clear().limit((int) Math.min(CHUNK_SIZE, fileSize - offset));
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                                throw new EOFException("File truncated while hashing: " + filePath);
+                            }
+                        }
+                        digest.update(buffer.flip());
+                        checksums[i] = HexFormat.of().formatHex(digest.digest());
+
+                        int hashed = hashedParts.incrementAndGet();
+                        if (listener != null && (hashed % reportStep == 0 || hashed == partsCount)) {
+                            listener.onHashProgress(filename, hashed, partsCount);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                // Остальные потоки останавливаются после текущей части: оставшихся частей больше нет
+                nextPart.set(partsCount);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while calculating part checksums", e);
                 }
-                checksums.put(i, sb.toString());
+                throw new IOException("Failed to calculate part checksums", e.getCause());
             }
-        } catch (Exception e) {
-            throw new IOException("Failed to calculate part checksums", e);
         }
 
-        return checksums;
+        Map<Integer, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < partsCount; i++) {
+            result.put(i, checksums[i]);
+        }
+        return result;
     }
 
     /**
      * Получить данные части файла с диска
      */
     public byte[] getLocalChunk(String fileId, int partIndex) throws IOException {
-        FileInfo fileInfo = localFiles.get(fileId);
-        if (fileInfo == null) {
+        LocalFile localFile = localFiles.get(fileId);
+        if (localFile == null) {
             throw new FileNotFoundException("File not found: " + fileId);
         }
+        FileInfo fileInfo = localFile.fileInfo();
 
-        Path filePath = downloadDir.resolve(fileInfo.filename());
+        Path filePath = Paths.get(localFile.path());
         if (!Files.exists(filePath)) {
             throw new FileNotFoundException("File not found on disk: " + filePath);
         }
@@ -280,11 +552,26 @@ public class DownloadManager {
         }
     }
 
+    /**
+     * Файлы, загрузка которых начата, но не завершена (в том числе восстановленные после перезапуска)
+     */
+    public List<FileInfo> getActiveDownloads() {
+        List<FileInfo> downloads = new ArrayList<>();
+        for (FileDownload download : activeDownloads.values()) {
+            downloads.add(download.fileInfo);
+        }
+        return downloads;
+    }
+
     /**
      * Получить список всех локальных файлов
      */
     public List<FileInfo> getLocalFiles() {
-        return new ArrayList<>(localFiles.values());
+        List<FileInfo> files = new ArrayList<>();
+        for (LocalFile localFile : localFiles.values()) {
+            files.add(localFile.fileInfo());
+        }
+        return files;
     }
 
     /**
@@ -309,61 +596,127 @@ public class DownloadManager {
         if (download == null) {
             return 0;
         }
-        return download.chunks.size();
+        return download.receivedParts();
     }
 
 
     /**
-     * Внутренний класс для отслеживания загрузки файла
+     * Внутренний класс для отслеживания загрузки файла.
+     * Части пишутся в заранее созданный .part файл по своим смещениям, в памяти - только битовая маска
      */
     private static class FileDownload {
         private static final int MAX_RETRY_ATTEMPTS = 3;
 
         private final FileInfo fileInfo;
-        private final Map<Integer, byte[]> chunks = new ConcurrentHashMap<>();
+        private final Path partPath;
+        private final Path statePath;
+        private final FileChannel channel;
+        private final BitSet received;
         private final Map<Integer, Integer> retryAttempts = new ConcurrentHashMap<>();
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private long stateSavedAt;
 
-        public FileDownload(FileInfo fileInfo) {
+        public FileDownload(FileInfo fileInfo, Path partPath, Path statePath, BitSet received) throws IOException {
             this.fileInfo = fileInfo;
+            this.partPath = partPath;
+            this.statePath = statePath;
+            this.received = received;
+            this.channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            // Файл сразу получает полный размер; незаписанные области на большинстве ФС не занимают место
+            if (channel.size() < fileInfo.size()) {
+                channel.write(ByteBuffer.allocate(1), fileInfo.size() - 1);
+            }
+        }
+
+        /**
+         * Сохранить состояние загрузки (не чаще STATE_SAVE_INTERVAL_MS, если не force).
+         * Перед записью состояния данные частей сбрасываются на диск, чтобы отмеченная часть точно была записана
+         */
+        public synchronized void saveState(boolean force) throws IOException {
+            long now = System.currentTimeMillis();
+            if (!channel.isOpen()) {
+                // Загрузка уже завершена
+                return;
+            }
+            if (!force && now - stateSavedAt < STATE_SAVE_INTERVAL_MS) {
+                return;
+            }
+            // Сначала снимок маски, затем сброс данных: всё, что попало в снимок, уже записано в канал
+            // и будет на диске раньше, чем состояние
+            byte[] bits;
+            synchronized (received) {
+                bits = received.toByteArray();
+            }
+            channel.force(false);
+            DownloadState state = new DownloadState(fileInfo, Base64.getEncoder().encodeToString(bits));
+            Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+            objectMapper.writeValue(tmp.toFile(), state);
+            try {
+                Files.move(tmp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            stateSavedAt = now;
         }
 
-        public void saveChunk(int partIndex, byte[] data) {
-            chunks.put(partIndex, data);
+        public int partLength(int partIndex) {
+            return (int) Math.min(CHUNK_SIZE, fileInfo.size() - (long) partIndex * CHUNK_SIZE);
         }
 
-        public byte[] getChunk(int partIndex) {
-            return chunks.get(partIndex);
+        public void writePart(int partIndex, byte[] data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = (long) partIndex * CHUNK_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            synchronized (received) {
+                received.set(partIndex);
+            }
+        }
+
+        public boolean hasPart(int partIndex) {
+            synchronized (received) {
+                return received.get(partIndex);
+            }
+        }
+
+        public int receivedParts() {
+            synchronized (received) {
+                return received.cardinality();
+            }
         }
 
         public boolean isComplete() {
-            return chunks.size() == fileInfo.partsCount();
+            return receivedParts() == fileInfo.partsCount();
         }
 
         public List<Integer> getNeededParts() {
             List<Integer> needed = new ArrayList<>();
-            for (int i = 0; i < fileInfo.partsCount(); i++) {
-                if (!chunks.containsKey(i)) {
+            synchronized (received) {
+                for (int i = received.nextClearBit(0); i < fileInfo.partsCount(); i = received.nextClearBit(i + 1)) {
                     needed.add(i);
                 }
             }
             return needed;
         }
 
+        public synchronized void close() throws IOException {
+            channel.force(true);
+            channel.close();
+        }
+
         public boolean canRetry(int partIndex) {
             int attempts = retryAttempts.getOrDefault(partIndex, 0);
             return attempts < MAX_RETRY_ATTEMPTS;
         }
 
         public void incrementRetryAttempt(int partIndex) {
-            retryAttempts.put(partIndex, retryAttempts.getOrDefault(partIndex, 0) + 1);
+            retryAttempts.merge(partIndex, 1, Integer::sum);
         }
 
         public int getRetryAttempt(int partIndex) {
             return retryAttempts.getOrDefault(partIndex, 0);
         }
-
-        public void removeCorruptedChunk(int partIndex) {
-            chunks.remove(partIndex);
-        }
     }
 }
@@ -0,0 +1,9 @@
+package org.torrents.client;
+
+/**
+ * Интерфейс для уведомлений о прогрессе хеширования добавляемого файла.
+ * Вызывается из потоков хеширования
+ */
+public interface HashProgressListener {
+    void onHashProgress(String filename, int hashedParts, int totalParts);
+}
@@ -1,10 +1,16 @@
 package org.torrents.client.model;
 
 import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.torrents.client.DownloadManager;
+import org.torrents.client.HashProgressListener;
 import org.torrents.shared.Message;
 import org.torrents.shared.MessageType;
+import org.torrents.shared.PriorityWriteLock;
 import org.torrents.shared.ProtocolUtil;
+import org.torrents.shared.schemas.ChunkHeader;
 import org.torrents.shared.schemas.FileInfo;
 
 import java.io.FileNotFoundException;
@@ -17,11 +23,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * TorrentModel - содержит бизнес-логику и данные торрент-клиента
  */
 public class TorrentModel {
+    private static final Logger logger = LoggerFactory.getLogger(TorrentModel.class);
     /**
      * -- GETTER --
      *  Получить менеджер загрузок
@@ -31,12 +41,20 @@ public class TorrentModel {
     private Socket socket;
     private OutputStream out;
     private InputStream in;
+    private final PriorityWriteLock writeLock = new PriorityWriteLock();
+    // Раздача частей другим пирам, создаётся при подключении
+    private volatile ExecutorService uploadExecutor;
     /**
      * -- GETTER --
      *  Проверить подключен ли клиент
      */
     @Getter
     private volatile boolean connected = false;
+    /**
+     * Сервер подтвердил поддержку бинарных кадров для SEND_CHUNK
+     */
+    @Setter
+    private volatile boolean binaryFrames = false;
 
     public TorrentModel(String downloadDir) {
         this.downloadManager = new DownloadManager(downloadDir);
@@ -53,6 +71,7 @@ public class TorrentModel {
         socket = new Socket(host, port);
         out = socket.getOutputStream();
         in = socket.getInputStream();
+        uploadExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("upload").daemon(true).factory());
         connected = true;
     }
 
@@ -61,6 +80,11 @@ public class TorrentModel {
      */
     public void disconnect() {
         connected = false;
+        binaryFrames = false;
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+            uploadExecutor = null;
+        }
 
         try {
             if (socket != null && !socket.isClosed()) {
@@ -80,10 +104,19 @@ public class TorrentModel {
         }
 
         List<FileInfo> localFiles = downloadManager.getLocalFiles();
-        Message registerMsg = new Message(MessageType.REGISTER, Map.of("files", localFiles));
+        Message registerMsg = new Message(MessageType.REGISTER, Map.of(
+                "files", localFiles,
+                ProtocolUtil.BINARY_FRAMES_KEY, true
+        ));
+
+        sendControl(registerMsg);
 
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, registerMsg);
+        // Продолжаем загрузки, прерванные прошлым запуском клиента
+        for (FileInfo download : downloadManager.getActiveDownloads()) {
+            List<Integer> neededParts = downloadManager.getNeededParts(download.fileId());
+            if (!neededParts.isEmpty()) {
+                requestParts(download.fileId(), neededParts);
+            }
         }
     }
 
@@ -91,7 +124,14 @@ public class TorrentModel {
      * Добавить локальный файл для раздачи
      */
     public FileInfo addLocalFile(Path filePath) throws IOException {
-        FileInfo fileInfo = downloadManager.addLocalFile(filePath);
+        return addLocalFile(filePath, null);
+    }
+
+    /**
+     * Добавить локальный файл для раздачи, сообщая прогресс вычисления checksum частей
+     */
+    public FileInfo addLocalFile(Path filePath, HashProgressListener listener) throws IOException {
+        FileInfo fileInfo = downloadManager.addLocalFile(filePath, listener);
 
         // Отправляем сообщение ADD_FILE серверу
         Map<String, String> partsMap = new LinkedHashMap<>();
@@ -107,9 +147,7 @@ public class TorrentModel {
                 "filename", fileInfo.filename()
         ));
 
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, addMsg);
-        }
+        sendControl(addMsg);
 
         return fileInfo;
     }
@@ -128,18 +166,19 @@ public class TorrentModel {
 
         downloadManager.startDownload(fileInfo);
 
-        List<Integer> neededParts = downloadManager.getNeededParts(fileInfo.fileId());
+        requestParts(fileInfo.fileId(), downloadManager.getNeededParts(fileInfo.fileId()));
+    }
+
+    private void requestParts(String fileId, List<Integer> neededParts) throws IOException {
         String requestId = UUID.randomUUID().toString();
 
         Message requestMsg = new Message(MessageType.REQUEST_FILE, Map.of(
-                "fileId", fileInfo.fileId(),
+                "fileId", fileId,
                 "partsNeeded", neededParts,
                 "requestId", requestId
         ));
 
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, requestMsg);
-        }
+        sendControl(requestMsg);
     }
 
     /**
@@ -157,9 +196,20 @@ public class TorrentModel {
                 "requestId", requestId
         ));
 
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, requestMsg);
+        sendControl(requestMsg);
+    }
+
+    /**
+     * Запросить у сервера полный список файлов (если пропущены изменения каталога)
+     */
+    public void requestFileList() throws IOException {
+        if (!connected) {
+            throw new IllegalStateException("Not connected");
         }
+
+        Message requestMsg = new Message(MessageType.FILE_LIST_REQUEST, Map.of());
+
+        sendControl(requestMsg);
     }
 
     /**
@@ -179,28 +229,56 @@ public class TorrentModel {
                 "message", message
         ));
 
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, errorMsg);
-        }
+        sendControl(errorMsg);
     }
 
     /**
-     * Обработать запрос части файла от другого пира
+     * Обработать запрос части файла от другого пира.
+     * Части читаются с диска и отправляются в отдельном потоке, чтобы поток чтения сообщений
+     * не простаивал, пока идёт раздача
      */
-    public void handleFileRequest(String fileId, List<Integer> partsNeeded, String requestId) throws IOException {
+    public void handleFileRequest(String fileId, List<Integer> partsNeeded, String requestId) {
+        ExecutorService executor = uploadExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    serveFileRequest(fileId, partsNeeded, requestId);
+                } catch (IOException e) {
+                    if (connected) {
+                        logger.error("Failed to upload parts of {}: {}", fileId, e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Upload of {} skipped, client is disconnected", fileId);
+        }
+    }
+
+    private void serveFileRequest(String fileId, List<Integer> partsNeeded, String requestId) throws IOException {
         for (int partIndex : partsNeeded) {
             try {
                 byte[] chunkData = downloadManager.getLocalChunk(fileId, partIndex);
 
-                Message chunkMsg = new Message(MessageType.SEND_CHUNK, Map.of(
-                        "fileId", fileId,
-                        "partIndex", partIndex,
-                        "length", chunkData.length,
-                        "requestId", requestId != null ? requestId : ""
-                ));
-
-                synchronized (out) {
+                writeLock.lockData();
+                try {
+                    if (binaryFrames) {
+                        ProtocolUtil.sendBinaryChunk(out,
+                                new ChunkHeader(fileId, partIndex, chunkData.length, requestId), chunkData);
+                        continue;
+                    }
+
+                    Message chunkMsg = new Message(MessageType.SEND_CHUNK, Map.of(
+                            "fileId", fileId,
+                            "partIndex", partIndex,
+                            "length", chunkData.length,
+                            "requestId", requestId != null ? requestId : ""
+                    ));
                     ProtocolUtil.sendChunkData(out, chunkMsg, chunkData);
+                } finally {
+                    writeLock.unlock();
                 }
 
             } catch (FileNotFoundException e) {
@@ -208,5 +286,16 @@ public class TorrentModel {
             }
         }
     }
-}
 
+    /**
+     * Отправить управляющее сообщение: оно обгоняет ожидающие отправки чанки
+     */
+    private void sendControl(Message message) throws IOException {
+        writeLock.lockControl();
+        try {
+            ProtocolUtil.sendMessage(out, message);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
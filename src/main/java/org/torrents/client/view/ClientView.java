@@ -1,5 +1,6 @@
 package org.torrents.client.view;
 
+import javafx.beans.binding.Bindings;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.ProgressBarTableCell;
@@ -66,8 +67,10 @@ public class ClientView {
         // Связываем таблицу с данными из ViewModel
         filesTable.setItems(viewModel.getAvailableFiles());
 
-        // Связываем статус подключения с UI
-        statusLabel.textProperty().bind(viewModel.connectionStatusProperty());
+        // Связываем статус подключения с UI; пока идёт хеширование добавляемого файла, показываем его прогресс
+        statusLabel.textProperty().bind(Bindings.when(viewModel.hashingStatusProperty().isEmpty())
+                .then(viewModel.connectionStatusProperty())
+                .otherwise(viewModel.hashingStatusProperty()));
 
         // Связываем состояние кнопок с состоянием подключения
         connectButton.disableProperty().bind(viewModel.connectedProperty());
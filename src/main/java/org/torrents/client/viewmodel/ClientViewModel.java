@@ -15,6 +15,7 @@ import org.torrents.client.model.TorrentModel;
 import org.torrents.shared.Message;
 import org.torrents.shared.ProtocolUtil;
 import org.torrents.shared.schemas.ChunkData;
+import org.torrents.shared.schemas.FileAvailability;
 import org.torrents.shared.schemas.FileInfo;
 
 import java.io.IOException;
@@ -36,9 +37,14 @@ public class ClientViewModel {
     // Observable свойства для UI
     private final StringProperty connectionStatus = new SimpleStringProperty("Не подключено");
     private final BooleanProperty connected = new SimpleBooleanProperty(false);
+    // Прогресс вычисления checksum добавляемого файла; пустая строка - хеширование не идёт
+    private final StringProperty hashingStatus = new SimpleStringProperty("");
     @Getter
     private final ObservableList<FileInfoViewModel> availableFiles = FXCollections.observableArrayList();
     private final Map<String, FileInfoViewModel> fileViewModelMap = new ConcurrentHashMap<>();
+    // Версия каталога, к которой применены изменения; -1 - ждём полный FILE_LIST.
+    // Меняется только в потоке обработки сообщений
+    private long catalogVersion = -1;
     @Setter
     private ErrorListener errorListener;
     @Setter
@@ -56,6 +62,7 @@ public class ClientViewModel {
         new Thread(() -> {
             try {
                 model.connect(host, port);
+                catalogVersion = -1;
 
                 // Запускаем поток для обработки входящих сообщений
                 messageHandlerThread = new Thread(this::handleIncomingMessages, "MessageHandler");
@@ -105,9 +112,11 @@ public class ClientViewModel {
      * Добавить локальный файл для раздачи
      */
     public void addLocalFile(Path filePath) {
+        String prefix = "Хеширование " + filePath.getFileName() + ": ";
         new Thread(() -> {
             try {
-                FileInfo fileInfo = model.addLocalFile(filePath);
+                FileInfo fileInfo = model.addLocalFile(filePath, (filename, hashedParts, totalParts) ->
+                        Platform.runLater(() -> hashingStatus.set(prefix + hashedParts * 100 / totalParts + "%")));
 
                 Platform.runLater(() -> {
                     if (infoListener != null) {
@@ -123,6 +132,13 @@ public class ClientViewModel {
                                 "Не удалось добавить файл: " + e.getMessage());
                     }
                 });
+            } finally {
+                // Сбрасываем статус, только если его не заняло хеширование другого файла
+                Platform.runLater(() -> {
+                    if (hashingStatus.get().startsWith(prefix)) {
+                        hashingStatus.set("");
+                    }
+                });
             }
         }).start();
     }
@@ -188,6 +204,7 @@ public class ClientViewModel {
     private void handleMessage(Message message) throws IOException {
         switch (message.getType()) {
             case FILE_LIST -> handleFileList(message);
+            case FILE_LIST_UPDATE -> handleFileListUpdate(message);
             case SEND_CHUNK -> handleSendChunk(message);
             case REQUEST_FILE -> handleRequestFile(message);
             case ERROR -> handleError(message);
@@ -196,10 +213,13 @@ public class ClientViewModel {
     }
 
     /**
-     * Обработка списка файлов от сервера
+     * Обработка полного списка файлов от сервера
      */
     private void handleFileList(Message message) {
         Map<String, Object> payload = message.getPayload();
+        if (Boolean.TRUE.equals(payload.get(ProtocolUtil.BINARY_FRAMES_KEY))) {
+            model.setBinaryFrames(true);
+        }
         Object filesObj = payload.get("files");
 
         if (filesObj == null) {
@@ -207,6 +227,8 @@ public class ClientViewModel {
         }
 
         List<FileInfo> files = objectMapper.convertValue(filesObj, new TypeReference<List<FileInfo>>() {});
+        Number version = (Number) payload.get(ProtocolUtil.CATALOG_VERSION_KEY);
+        catalogVersion = version != null ? version.longValue() : -1;
 
         Platform.runLater(() -> {
             // Обновляем список файлов
@@ -214,27 +236,86 @@ public class ClientViewModel {
             fileViewModelMap.clear();
 
             for (FileInfo fileInfo : files) {
-                FileInfoViewModel viewModel = new FileInfoViewModel(fileInfo);
+                FileInfoViewModel viewModel = createFileViewModel(fileInfo);
+                availableFiles.add(viewModel);
+                fileViewModelMap.put(fileInfo.fileId(), viewModel);
+            }
+        });
+    }
 
-                // Проверяем, есть ли файл локально
-                if (model.getDownloadManager().hasFile(fileInfo.fileId())) {
-                    viewModel.setIsLocal(true);
-                    viewModel.setProgress(1.0);
-                } else {
-                    // Проверяем, идет ли загрузка
-                    int progress = model.getDownloadManager().getDownloadProgress(fileInfo.fileId());
-                    if (progress > 0) {
-                        viewModel.setProgress((double) progress / fileInfo.partsCount());
-                        viewModel.setStatus("Загрузка...");
-                    }
-                }
+    /**
+     * Обработка изменения каталога: применяется к текущему списку без его пересоздания.
+     * Если изменение не следует за известной версией, запрашивается полный список
+     */
+    private void handleFileListUpdate(Message message) throws IOException {
+        Map<String, Object> payload = message.getPayload();
+        long baseVersion = ((Number) payload.get(ProtocolUtil.CATALOG_BASE_VERSION_KEY)).longValue();
+        long version = ((Number) payload.get(ProtocolUtil.CATALOG_VERSION_KEY)).longValue();
 
+        if (catalogVersion < 0 || version <= catalogVersion) {
+            // Ждём полный список или изменение уже в нём учтено
+            return;
+        }
+        if (baseVersion != catalogVersion) {
+            logger.info("Catalog update {} -> {} does not follow local version {}, requesting full list",
+                    baseVersion, version, catalogVersion);
+            catalogVersion = -1;
+            model.requestFileList();
+            return;
+        }
+        catalogVersion = version;
+
+        List<FileInfo> added = objectMapper.convertValue(payload.get("added"), new TypeReference<List<FileInfo>>() {});
+        List<FileAvailability> changed = objectMapper.convertValue(payload.get("changed"),
+                new TypeReference<List<FileAvailability>>() {});
+        List<String> removed = objectMapper.convertValue(payload.get("removed"), new TypeReference<List<String>>() {});
+
+        Platform.runLater(() -> {
+            for (FileInfo fileInfo : added) {
+                FileInfoViewModel existing = fileViewModelMap.get(fileInfo.fileId());
+                if (existing != null) {
+                    existing.setFileInfo(fileInfo);
+                    continue;
+                }
+                FileInfoViewModel viewModel = createFileViewModel(fileInfo);
                 availableFiles.add(viewModel);
                 fileViewModelMap.put(fileInfo.fileId(), viewModel);
             }
+            for (FileAvailability availability : changed) {
+                FileInfoViewModel viewModel = fileViewModelMap.get(availability.fileId());
+                if (viewModel != null) {
+                    FileInfo old = viewModel.getFileInfo();
+                    viewModel.setFileInfo(new FileInfo(old.fileId(), old.size(), old.partsCount(),
+                            availability.parts(), old.partChecksums(), old.filename()));
+                }
+            }
+            for (String fileId : removed) {
+                FileInfoViewModel viewModel = fileViewModelMap.remove(fileId);
+                if (viewModel != null) {
+                    availableFiles.remove(viewModel);
+                }
+            }
         });
     }
 
+    private FileInfoViewModel createFileViewModel(FileInfo fileInfo) {
+        FileInfoViewModel viewModel = new FileInfoViewModel(fileInfo);
+
+        // Проверяем, есть ли файл локально
+        if (model.getDownloadManager().hasFile(fileInfo.fileId())) {
+            viewModel.setIsLocal(true);
+            viewModel.setProgress(1.0);
+        } else {
+            // Проверяем, идет ли загрузка
+            int progress = model.getDownloadManager().getDownloadProgress(fileInfo.fileId());
+            if (progress > 0) {
+                viewModel.setProgress((double) progress / fileInfo.partsCount());
+                viewModel.setStatus("Загрузка...");
+            }
+        }
+        return viewModel;
+    }
+
     /**
      * Обработка получения части файла
      */
@@ -362,6 +443,10 @@ public class ClientViewModel {
         return connectionStatus;
     }
 
+    public StringProperty hashingStatusProperty() {
+        return hashingStatus;
+    }
+
     public BooleanProperty connectedProperty() {
         return connected;
     }
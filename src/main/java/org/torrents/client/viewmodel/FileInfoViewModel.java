@@ -2,14 +2,17 @@ package org.torrents.client.viewmodel;
 
 import javafx.beans.property.*;
 import lombok.Getter;
+import lombok.Setter;
 import org.torrents.shared.schemas.FileInfo;
 
 /**
  * ViewModel для отдельного файла
  */
 public class FileInfoViewModel {
+    // Заменяется, когда меняется набор доступных частей файла
     @Getter
-    private final FileInfo fileInfo;
+    @Setter
+    private volatile FileInfo fileInfo;
 
     private final StringProperty filename = new SimpleStringProperty();
     private final LongProperty size = new SimpleLongProperty();
@@ -7,17 +7,23 @@ import org.slf4j.LoggerFactory;
 import org.torrents.server.handlers.MessageHandler;
 import org.torrents.server.handlers.MessageHandlerFactory;
 import org.torrents.server.service.FileTransferService;
+import org.torrents.server.service.PendingChunk;
 import org.torrents.shared.Message;
 import org.torrents.shared.MessageType;
+import org.torrents.shared.PriorityWriteLock;
 import org.torrents.shared.ProtocolUtil;
 import org.torrents.shared.schemas.ChunkData;
+import org.torrents.shared.schemas.ChunkHeader;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Getter
 public class ClientHandler implements Runnable {
@@ -26,12 +32,21 @@ public class ClientHandler implements Runnable {
     private final OutputStream out;
     private final InputStream in;
     private final ClientListener clientListener;
-    private final Map<String, CompletableFuture<ChunkData>> pendingRequests = new ConcurrentHashMap<>();
+    private final Map<String, PendingChunk> pendingRequests = new ConcurrentHashMap<>();
     private final FileTransferService fileTransferService;
     private final MessageHandlerFactory messageHandlerFactory;
 
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // Управляющие сообщения пропускаются вперёд чанков, см. PriorityWriteLock
+    private final PriorityWriteLock writeLock = new PriorityWriteLock();
+
     @Setter
     private volatile boolean running = true;
+    /**
+     * Клиент поддерживает бинарные кадры SEND_CHUNK/REQUEST_FILE (согласуется при REGISTER)
+     */
+    @Setter
+    private volatile boolean binaryFrames = false;
 
     public ClientHandler(String clientId, OutputStream out, InputStream in,
                          ClientListener clientListener, FileTransferService fileTransferService,
@@ -55,35 +70,78 @@ public class ClientHandler implements Runnable {
                     break;
                 }
 
-                // Обработка сообщения
-                MessageHandler handler = messageHandlerFactory.getHandler(message.getType());
-                handler.handle(message, this);
+                handleMessage(message);
             }
         } catch (IOException e) {
             logger.error("Error handling client {}: {}", clientId, e.getMessage(), e);
         } finally {
-            try {
-                if (in != null) in.close();
-            } catch (IOException ignored) {
-            }
-            try {
-                if (out != null) out.close();
-            } catch (IOException ignored) {
-            }
-            // Уведомляем об отключении клиента
-            if (clientListener != null) {
-                clientListener.onClientDisconnected(clientId);
+            close();
+        }
+    }
+
+    /**
+     * Обработка одного входящего сообщения.
+     * Тело SEND_CHUNK обработчик читает из in сразу после заголовка
+     */
+    public void handleMessage(Message message) {
+        MessageHandler handler = messageHandlerFactory.getHandler(message.getType());
+        handler.handle(message, this);
+    }
+
+    /**
+     * Закрыть соединение и уведомить слушателя. Повторные вызовы игнорируются
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        running = false;
+        try {
+            if (in != null) in.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignored) {
+        }
+        // Ответов на запросы к этому пиру больше не будет
+        IOException disconnected = new IOException("Peer " + clientId + " disconnected");
+        for (String requestId : List.copyOf(pendingRequests.keySet())) {
+            PendingChunk pending = pendingRequests.remove(requestId);
+            if (pending != null) {
+                pending.future().completeExceptionally(disconnected);
             }
         }
+        // Уведомляем об отключении клиента
+        if (clientListener != null) {
+            clientListener.onClientDisconnected(clientId);
+        }
     }
 
     /**
      * Отправка сообщения клиенту.
-     * Используется synchronized блок для обеспечения потокобезопасности при записи в OutputStream
+     * Запись защищена writeLock: он, в отличие от synchronized, не закрепляет
+     * виртуальный поток за потоком-носителем на время блокирующей записи в сокет
      */
     public void sendMessage(Message message) throws IOException {
-        synchronized (out) {
+        writeLock.lockControl();
+        try {
             ProtocolUtil.sendMessage(out, message);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Отправка заранее закодированного кадра, см. ProtocolUtil.encodeMessage
+     */
+    public void sendFrame(byte[] frame) throws IOException {
+        writeLock.lockControl();
+        try {
+            out.write(frame);
+            out.flush();
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -91,24 +149,104 @@ public class ClientHandler implements Runnable {
      * Отправка чанка данных клиенту.
      */
     public void sendChunkData(ChunkData chunkData) throws IOException {
-        synchronized (out) {
-            Message msg = new Message(MessageType.SEND_CHUNK, Map.of(
-                    "fileId", chunkData.fileId(),
-                    "partIndex", chunkData.partIndex(),
-                    "length", chunkData.data().length
-            ));
-            ProtocolUtil.sendChunkData(out, msg, chunkData.data());
+        writeLock.lockData();
+        try {
+            writeChunkHeader(chunkData.fileId(), chunkData.partIndex(), chunkData.data().length);
+            out.write(chunkData.data());
+            out.flush();
+        } finally {
+            writeLock.unlock();
         }
     }
 
+    /**
+     * Пересылка чанка клиенту напрямую из входящего потока другого пира.
+     * Тело копируется через buffer и не собирается в памяти целиком (кроме копии в capture, если он задан).
+     * Если чанк не удалось переслать целиком, соединение с клиентом закрывается: он мог получить
+     * заголовок и часть тела, и следующий кадр в этом потоке уже не разобрать
+     * @return true, если чанк полностью отправлен клиенту
+     */
+    public boolean relayChunk(ChunkHeader header, InputStream source, byte[] buffer, byte[] capture)
+            throws IOException {
+        boolean relayed = false;
+        writeLock.lockData();
+        try {
+            try {
+                writeChunkHeader(header.fileId(), header.partIndex(), header.length());
+            } catch (IOException e) {
+                ProtocolUtil.skipChunkData(source, header.length());
+                return false;
+            }
+            relayed = ProtocolUtil.relayChunkData(source, out, header.length(), buffer, capture);
+            return relayed;
+        } finally {
+            writeLock.unlock();
+            if (!relayed) {
+                logger.warn("Relay of part {} of file {} to client {} failed, closing connection",
+                        header.partIndex(), header.fileId(), clientId);
+                close();
+            }
+        }
+    }
+
+    private void writeChunkHeader(String fileId, int partIndex, int length) throws IOException {
+        if (binaryFrames) {
+            ProtocolUtil.writeBinaryChunkHeader(out, new ChunkHeader(fileId, partIndex, length, ""));
+            return;
+        }
+        Message msg = new Message(MessageType.SEND_CHUNK, Map.of(
+                "fileId", fileId,
+                "partIndex", partIndex,
+                "length", length
+        ));
+        ProtocolUtil.writeChunkHeader(out, msg);
+    }
+
+    /**
+     * Снять запрос, на который не пришёл ответ: поздний ответ будет вычитан и отброшен
+     * @return false, если ответ уже начал приниматься или запрос уже снят
+     */
+    public boolean expireRequest(String requestId, long timeoutMs) {
+        PendingChunk pending = pendingRequests.remove(requestId);
+        if (pending == null) {
+            return false;
+        }
+        pending.future().completeExceptionally(
+                new TimeoutException("No response within " + timeoutMs + " ms from " + clientId));
+        return true;
+    }
+
     /**
      * Отправка запроса чанка данных клиенту и получение CompletableFuture для ожидания ответа.
+     * Если relayTarget задан, ответ будет переслан ему без буферизации.
+     * claimed разделяется между дублирующими запросами одной части, см. PendingChunk
      */
-    public CompletableFuture<ChunkData> sendChunkRequest(Message message, String requestId) throws IOException {
+    public CompletableFuture<ChunkData> sendChunkRequest(String fileId, int partIndex, int partLength, String requestId,
+                                                         ClientHandler relayTarget, AtomicBoolean claimed)
+            throws IOException {
         CompletableFuture<ChunkData> future = new CompletableFuture<>();
-        pendingRequests.put(requestId, future);
-        synchronized (out) {
-            ProtocolUtil.sendMessage(out, message);
+        pendingRequests.put(requestId, new PendingChunk(future, relayTarget, partLength, System.nanoTime(), claimed));
+        if (closed.get()) {
+            pendingRequests.remove(requestId);
+            throw new IOException("Peer " + clientId + " disconnected");
+        }
+        writeLock.lockControl();
+        try {
+            if (binaryFrames) {
+                ProtocolUtil.sendBinaryFileRequest(out, fileId, partIndex, requestId);
+            } else {
+                Message message = new Message(MessageType.REQUEST_FILE, Map.of(
+                        "fileId", fileId,
+                        "partsNeeded", List.of(partIndex),
+                        "requestId", requestId
+                ));
+                ProtocolUtil.sendMessage(out, message);
+            }
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            throw e;
+        } finally {
+            writeLock.unlock();
         }
         return future;
     }
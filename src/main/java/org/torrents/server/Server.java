@@ -2,9 +2,12 @@ package org.torrents.server;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.torrents.server.db.IndexedRepository;
 import org.torrents.server.db.RepositoryImpl;
 import org.torrents.server.handlers.MessageHandlerFactory;
+import org.torrents.server.nio.NioServer;
 import org.torrents.server.service.BroadcastService;
+import org.torrents.server.service.ChunkCache;
 import org.torrents.server.service.FileService;
 import org.torrents.server.service.FileTransferService;
 import org.torrents.server.service.PeerService;
@@ -13,6 +16,8 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
@@ -20,7 +25,15 @@ public class Server {
     private ServerSocket serverSocket;
     private BroadcastService broadcastService;
     private PeerService peerService;
+    private FileTransferService fileTransferService;
+    private MessageHandlerFactory messageHandlerFactory;
+    private ClientListener disconnectListener;
+    private IndexedRepository repository;
+    private NioServer nioServer;
+    private ExecutorService handlerExecutor;
+    private ExecutorService transferExecutor;
     private final int port;
+    private final ServerConfig config;
     private volatile boolean running = false;
 
     public Server() {
@@ -28,24 +41,52 @@ public class Server {
     }
 
     public Server(int port) {
+        this(port, new ServerConfig());
+    }
+
+    public Server(int port, ServerConfig config) {
         this.port = port;
+        this.config = config;
     }
 
     public void start() throws IOException {
         if (running) {
             throw new IllegalStateException("Server is already running");
         }
-        RepositoryImpl repository = new RepositoryImpl();
+        // Доступность частей хранится в памяти, SQLite обновляется в фоне
+        repository = new IndexedRepository(new RepositoryImpl());
         FileService fileService = new FileService(repository);
-        serverSocket = new ServerSocket(port);
-        peerService = new PeerService();
-        FileTransferService fileTransferService = new FileTransferService(peerService, repository);
-        broadcastService = new BroadcastService(peerService, fileService);
-        MessageHandlerFactory messageHandlerFactory = new MessageHandlerFactory(fileService, broadcastService, fileTransferService);
-        running = true;
+        peerService = new PeerService(config.peerUploadSlots, config.peerSelection);
+        transferExecutor = config.serverMode == ServerConfig.ServerMode.VIRTUAL_THREADS
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(Thread.ofPlatform().name("transfer-", 0).factory());
+        fileTransferService = new FileTransferService(peerService, repository, config, transferExecutor);
+        broadcastService = new BroadcastService(peerService, fileService, config);
+        messageHandlerFactory = new MessageHandlerFactory(fileService, broadcastService, fileTransferService);
+        // При отключении клиента убираем его части из индекса и сообщаем остальным новый список файлов
+        disconnectListener = clientId -> {
+            peerService.onClientDisconnected(clientId);
+            fileService.removePeer(clientId);
+            broadcastService.onClientDisconnected(clientId);
+            broadcastService.broadcastFileList();
+        };
+
+        if (config.serverMode == ServerConfig.ServerMode.NIO) {
+            startNio();
+        } else {
+            serverSocket = new ServerSocket(port);
+            running = true;
+            logger.info("Server started on port {} ({})", port, config.serverMode);
+            acceptConnections();
+        }
 
-        logger.info("Server started on port {}", port);
+        logger.info("Server stopped accepting new connections");
+    }
 
+    /**
+     * Приём соединений в режиме "поток на соединение"
+     */
+    private void acceptConnections() {
         while (running) {
             try {
                 Socket socket = serverSocket.accept();
@@ -57,16 +98,12 @@ public class Server {
                 }
 
                 try {
-                    OutputStream out = socket.getOutputStream();
-                    InputStream in = socket.getInputStream();
-                    String clientId = UUID.randomUUID().toString();
-                    ClientHandler client = new ClientHandler(clientId, out, in, peerService, fileTransferService, messageHandlerFactory);
-
-                    peerService.addPeer(clientId, client);
-
-                    new Thread(client).start();
-
-                    logger.info("New client connected: {}", clientId);
+                    ClientHandler client = createClientHandler(socket.getOutputStream(), socket.getInputStream());
+                    if (config.serverMode == ServerConfig.ServerMode.VIRTUAL_THREADS) {
+                        Thread.ofVirtual().name("client-" + client.getClientId()).start(client);
+                    } else {
+                        new Thread(client).start();
+                    }
                 } catch (Exception e) {
                     logger.error("Error creating client handler: {}", e.getMessage(), e);
                     try {
@@ -81,10 +118,27 @@ public class Server {
                 }
             }
         }
+    }
 
-        logger.info("Server stopped accepting new connections");
+    /**
+     * Приём соединений в режиме NIO: чтение и запись идут в нескольких потоках с Selector,
+     * обработчики сообщений выполняются в отдельном пуле
+     */
+    private void startNio() throws IOException {
+        handlerExecutor = Executors.newCachedThreadPool(Thread.ofPlatform().name("nio-worker-", 0).factory());
+        nioServer = new NioServer(port, config.nioEventLoops, config.nioMaxPendingWriteBytes,
+                config.relayBufferPoolSize, handlerExecutor, this::createClientHandler);
+        running = true;
+        nioServer.start();
     }
 
+    private ClientHandler createClientHandler(OutputStream out, InputStream in) {
+        String clientId = UUID.randomUUID().toString();
+        ClientHandler client = new ClientHandler(clientId, out, in, disconnectListener, fileTransferService, messageHandlerFactory);
+        peerService.addPeer(clientId, client);
+        logger.info("New client connected: {}", clientId);
+        return client;
+    }
 
     /**
      * Остановить сервер с graceful shutdown
@@ -107,11 +161,28 @@ public class Server {
             }
         }
 
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+        if (transferExecutor != null) {
+            transferExecutor.shutdown();
+        }
+
         // Останавливаем BroadcastService
         if (broadcastService != null) {
             broadcastService.shutdown();
         }
 
+        if (fileTransferService != null) {
+            ChunkCache cache = fileTransferService.getChunkCache();
+            logger.info("Chunk cache: hits={}, misses={}, used={} bytes",
+                    cache.getHits(), cache.getMisses(), cache.getUsedBytes());
+            fileTransferService.shutdown();
+        }
+
         // Закрываем все клиентские соединения
         if (peerService != null) {
             peerService.shutdownAllPeers();
@@ -123,6 +194,10 @@ public class Server {
             Thread.currentThread().interrupt();
         }
 
+        if (repository != null) {
+            repository.close();
+        }
+
         logger.info("Server stopped gracefully");
     }
 
@@ -0,0 +1,130 @@
+package org.torrents.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.server.service.PeerSelectionStrategy;
+
+/**
+ * Настройки сервера, задаются через переменные окружения
+ */
+public class ServerConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
+
+    /**
+     * Режим пересылки чанков от раздающего пира к запросившему клиенту
+     */
+    public enum RelayMode {
+        /** Тело чанка потоково копируется из сокета пира в сокет клиента через пул буферов */
+        STREAM,
+        /** Тело чанка целиком читается в память, затем отправляется клиенту */
+        BUFFER
+    }
+
+    /**
+     * Модель обработки клиентских соединений
+     */
+    public enum ServerMode {
+        /** Отдельный поток на каждое соединение с блокирующим чтением */
+        THREAD_PER_CONNECTION,
+        /** Как THREAD_PER_CONNECTION, но соединения и передачи файлов обслуживаются виртуальными потоками */
+        VIRTUAL_THREADS,
+        /** Несколько потоков с Selector и неблокирующим разбором кадров */
+        NIO
+    }
+
+    /**
+     * Что делать с клиентом, который не успевает забирать рассылку каталога
+     */
+    public enum SlowConsumerPolicy {
+        /** Выбросить накопленные изменения и отправить клиенту полный FILE_LIST */
+        RESYNC,
+        /** Отключить клиента */
+        DISCONNECT
+    }
+
+    public ServerMode serverMode = ServerMode.THREAD_PER_CONNECTION;
+    public int nioEventLoops = 2;
+    public int nioMaxPendingWriteBytes = 4 * 1024 * 1024;
+    public RelayMode relayMode = RelayMode.STREAM;
+    public int relayBufferSize = 64 * 1024;
+    public int relayBufferPoolSize = 64;
+    /** Сколько частей одного файла запрашивается у пиров одновременно */
+    public int transferWindow = 8;
+    /** Сколько частей один пир может отдавать одновременно */
+    public int peerUploadSlots = 2;
+    public PeerSelectionStrategy peerSelection = PeerSelectionStrategy.LEAST_LOADED;
+    /** Сколько ждать свободного слота у пиров, мс */
+    public int peerWaitTimeoutMs = 10000;
+    /** Сколько ждать ответа пира на запрос части, мс */
+    public int chunkTimeoutMs = 15000;
+    /** Сколько раз запрашивать часть у разных пиров, прежде чем прервать передачу файла */
+    public int maxPartAttempts = 3;
+    /** Дублировать медленный запрос части другому пиру */
+    public boolean hedgeEnabled = false;
+    /** Задержка перед дублирующим запросом, пока у пира нет статистики (затем берётся p95 его ответов), мс */
+    public int hedgeDelayMs = 1000;
+    /** Объём кэша частей в памяти сервера, байт; 0 отключает кэш */
+    public long chunkCacheBytes = 64L * 1024 * 1024;
+    /** Изменения каталога за это время рассылаются одной пачкой, мс */
+    public int broadcastDebounceMs = 50;
+    /** Сколько кадров рассылки может ждать отправки одному клиенту */
+    public int broadcastQueueFrames = 64;
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.RESYNC;
+
+    public ServerConfig() {}
+
+    public static ServerConfig fromEnvironment() {
+        ServerConfig config = new ServerConfig();
+        config.serverMode = getEnvEnum("SERVER_MODE", ServerMode.class, ServerMode.THREAD_PER_CONNECTION);
+        config.nioEventLoops = getEnvInt("NIO_EVENT_LOOPS", 2);
+        config.nioMaxPendingWriteBytes = getEnvInt("NIO_MAX_PENDING_WRITE_BYTES", 4 * 1024 * 1024);
+        config.relayMode = getEnvEnum("RELAY_MODE", RelayMode.class, RelayMode.STREAM);
+        config.relayBufferSize = getEnvInt("RELAY_BUFFER_SIZE", 64 * 1024);
+        config.relayBufferPoolSize = getEnvInt("RELAY_BUFFER_POOL_SIZE", 64);
+        config.transferWindow = getEnvInt("TRANSFER_WINDOW", 8);
+        config.peerUploadSlots = getEnvInt("PEER_UPLOAD_SLOTS", 2);
+        config.peerSelection = getEnvEnum("PEER_SELECTION", PeerSelectionStrategy.class, PeerSelectionStrategy.LEAST_LOADED);
+        config.peerWaitTimeoutMs = getEnvInt("PEER_WAIT_TIMEOUT_MS", 10000);
+        config.chunkTimeoutMs = getEnvInt("CHUNK_TIMEOUT_MS", 15000);
+        config.maxPartAttempts = getEnvInt("MAX_PART_ATTEMPTS", 3);
+        config.hedgeEnabled = getEnvBoolean("HEDGE_ENABLED", false);
+        config.hedgeDelayMs = getEnvInt("HEDGE_DELAY_MS", 1000);
+        config.chunkCacheBytes = getEnvInt("CHUNK_CACHE_MB", 64) * 1024L * 1024;
+        config.broadcastDebounceMs = getEnvInt("BROADCAST_DEBOUNCE_MS", 50);
+        config.broadcastQueueFrames = getEnvInt("BROADCAST_QUEUE_FRAMES", 64);
+        config.slowConsumerPolicy = getEnvEnum("SLOW_CONSUMER_POLICY", SlowConsumerPolicy.class, SlowConsumerPolicy.RESYNC);
+        return config;
+    }
+
+    private static int getEnvInt(String key, int defaultValue) {
+        String value = System.getenv(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                logger.error("Invalid integer value for {}: {}, using default: {}", key, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static boolean getEnvBoolean(String key, boolean defaultValue) {
+        String value = System.getenv(key);
+        if (value != null) {
+            return Boolean.parseBoolean(value);
+        }
+        return defaultValue;
+    }
+
+    private static <E extends Enum<E>> E getEnvEnum(String key, Class<E> type, E defaultValue) {
+        String value = System.getenv(key);
+        if (value != null) {
+            try {
+                return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid value for {}: {}, using default: {}", key, value, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+}
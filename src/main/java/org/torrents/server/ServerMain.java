@@ -3,6 +3,7 @@ package org.torrents.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.server.db.DatabaseManager;
+import org.torrents.server.db.RepositoryImpl;
 
 public class ServerMain {
     private static final Logger logger = LoggerFactory.getLogger(ServerMain.class);
@@ -16,7 +17,7 @@ public class ServerMain {
         boolean clearOnStart = getBooleanArgOrEnv(args, 1, "DB_CLEAR_ON_START", DEFAULT_CLEAR_ON_START);
         int port = getIntArgOrEnv(args, 2, "SERVER_PORT", DEFAULT_PORT);
 
-        Server server = new Server(port);
+        Server server = new Server(port, ServerConfig.fromEnvironment());
 
         // Регистрируем shutdown hook для graceful shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown-hook"));
@@ -28,6 +29,11 @@ public class ServerMain {
 
             DatabaseManager.initPool(dbPath, clearOnStart, DatabaseManager.PoolConfig.fromEnvironment());
             DatabaseManager.runMigrations();
+            if (!clearOnStart) {
+                // Идентификаторы пиров живут одно подключение, сохранённые с прошлого запуска не нужны
+                int stale = new RepositoryImpl().removeAllPeers();
+                logger.info("Removed {} stale peers from database", stale);
+            }
             server.start();
         } catch (Exception e) {
             logger.error("Server failed to start: {}", e.getMessage(), e);
@@ -12,8 +12,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 public class DatabaseManager {
     private static HikariDataSource dataSource;
@@ -104,19 +107,74 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Миграции схемы по порядку: i-й элемент переводит БД на версию i + 1
+     */
+    private static final List<String> MIGRATIONS = List.of(
+            "/db/migration.sql",
+            "/db/migration_v2.sql",
+            "/db/migration_v3.sql"
+    );
+
+    /**
+     * Применить миграции, которых ещё нет в schema_version.
+     * Каждая миграция выполняется в своей транзакции с выключенными внешними ключами,
+     * чтобы можно было пересоздавать таблицы
+     */
     public static void runMigrations() {
         try (Connection conn = getConnection()) {
-            String sql = loadSql("/db/migration.sql");
-
             try (Statement stmt = conn.createStatement()) {
-                stmt.executeUpdate(sql);
+                stmt.executeUpdate("""
+                        CREATE TABLE IF NOT EXISTS schema_version (
+                            version INTEGER PRIMARY KEY,
+                            applied_at TEXT NOT NULL DEFAULT CURRENT_TIMESTAMP
+                        );""");
+            }
+            int current = getSchemaVersion(conn);
+            for (int version = current + 1; version <= MIGRATIONS.size(); version++) {
+                applyMigration(conn, version, loadSql(MIGRATIONS.get(version - 1)));
+                logger.info("Applied database migration v{}", version);
             }
-
         } catch (Exception e) {
             throw new RuntimeException("DB migration error", e);
         }
     }
 
+    private static int getSchemaVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void applyMigration(Connection conn, int version, String sql) throws SQLException {
+        boolean foreignKeys;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA foreign_keys")) {
+            foreignKeys = rs.next() && rs.getInt(1) == 1;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            // Внутри транзакции PRAGMA foreign_keys не действует, переключаем до её начала
+            stmt.execute("PRAGMA foreign_keys = OFF");
+            conn.setAutoCommit(false);
+            try {
+                stmt.executeUpdate(sql);
+                try (PreparedStatement insert = conn.prepareStatement(
+                        "INSERT INTO schema_version (version) VALUES (?)")) {
+                    insert.setInt(1, version);
+                    insert.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+                stmt.execute("PRAGMA foreign_keys = " + (foreignKeys ? "ON" : "OFF"));
+            }
+        }
+    }
+
     private static String loadSql(String resourcePath) {
         try (InputStream is = DatabaseManager.class.getResourceAsStream(resourcePath)) {
             if (is == null) {
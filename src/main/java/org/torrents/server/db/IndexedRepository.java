@@ -0,0 +1,246 @@
+package org.torrents.server.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.shared.schemas.FileInfo;
+import org.torrents.shared.schemas.FilePart;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Репозиторий с индексом доступности частей в памяти.
+ * Индекс (для каждого файла - битовая маска частей каждого пира) является основным источником
+ * данных о том, у кого какие части; в SQLite изменения записываются асинхронно, в одном потоке
+ * и в порядке поступления. Из БД читаются только метаданные файлов, которых ещё нет в индексе
+ */
+public class IndexedRepository implements Repository {
+    private static final Logger logger = LoggerFactory.getLogger(IndexedRepository.class);
+    private final Repository delegate;
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+    // Файлы, части которых есть у пира: чтобы при отключении не обходить все файлы
+    private final Map<String, Set<String>> peerFiles = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("db-writer").daemon(true).factory());
+
+    /**
+     * Файл в индексе: метаданные и маски частей по пирам, маски защищены lock
+     */
+    private static class FileEntry {
+        final FileInfo info;
+        final Map<String, BitSet> peerParts = new LinkedHashMap<>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        FileEntry(FileInfo info) {
+            this.info = info;
+        }
+    }
+
+    public IndexedRepository(Repository delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void registerPeer(String peerId, List<FileInfo> files) {
+        for (FileInfo file : files) {
+            addParts(peerId, file);
+        }
+        writeBehind(() -> delegate.registerPeer(peerId, files));
+    }
+
+    @Override
+    public void createIfNotExistsFile(FileInfo file) {
+        entry(file);
+        writeBehind(() -> delegate.createIfNotExistsFile(file));
+    }
+
+    @Override
+    public void addFileForPeer(String peerId, FileInfo file) {
+        addParts(peerId, file);
+        writeBehind(() -> delegate.addFileForPeer(peerId, file));
+    }
+
+    @Override
+    public List<FileInfo> getFiles() {
+        List<FileInfo> result = new ArrayList<>();
+        for (FileEntry entry : files.values()) {
+            BitSet available = availableParts(entry);
+            if (!available.isEmpty()) {
+                result.add(withParts(entry.info, toList(available)));
+            }
+        }
+        result.sort(Comparator.comparing(FileInfo::fileId));
+        return result;
+    }
+
+    @Override
+    public FileInfo getAvailableFile(String fileId) {
+        FileEntry entry = files.get(fileId);
+        if (entry == null) {
+            return null;
+        }
+        BitSet available = availableParts(entry);
+        return available.isEmpty() ? null : withParts(entry.info, toList(available));
+    }
+
+    @Override
+    public FileInfo getFile(String fileId) {
+        FileEntry entry = files.get(fileId);
+        if (entry == null) {
+            FileInfo stored = delegate.getFile(fileId);
+            if (stored == null) {
+                return null;
+            }
+            entry = entry(stored);
+        }
+        // Как и в БД, getFile возвращает все части файла, независимо от того, есть ли у них пиры
+        List<Integer> parts = new ArrayList<>(entry.info.partsCount());
+        for (int i = 0; i < entry.info.partsCount(); i++) {
+            parts.add(i);
+        }
+        return withParts(entry.info, parts);
+    }
+
+    @Override
+    public FilePart getFilePartWithPeers(String fileId, int partIndex) {
+        FileEntry entry = files.get(fileId);
+        if (entry == null || partIndex < 0 || partIndex >= entry.info.partsCount()) {
+            return null;
+        }
+        List<String> peers = new ArrayList<>();
+        entry.lock.readLock().lock();
+        try {
+            for (Map.Entry<String, BitSet> e : entry.peerParts.entrySet()) {
+                if (e.getValue().get(partIndex)) {
+                    peers.add(e.getKey());
+                }
+            }
+        } finally {
+            entry.lock.readLock().unlock();
+        }
+        String checksum = entry.info.partChecksums() != null
+                ? entry.info.partChecksums().getOrDefault(partIndex, "")
+                : "";
+        return new FilePart(fileId + "_" + partIndex, fileId, partIndex, checksum, peers);
+    }
+
+    @Override
+    public List<String> removePeer(String peerId) {
+        List<String> fileIds = removeFromIndex(peerId);
+        writeBehind(() -> delegate.removePeer(peerId));
+        return fileIds;
+    }
+
+    @Override
+    public int removeAllPeers() {
+        int removed = peerFiles.size();
+        for (String peerId : List.copyOf(peerFiles.keySet())) {
+            removeFromIndex(peerId);
+        }
+        writeBehind(delegate::removeAllPeers);
+        return removed;
+    }
+
+    private List<String> removeFromIndex(String peerId) {
+        Set<String> fileIds = peerFiles.remove(peerId);
+        if (fileIds == null) {
+            return List.of();
+        }
+        for (String fileId : fileIds) {
+            FileEntry entry = files.get(fileId);
+            if (entry == null) {
+                continue;
+            }
+            entry.lock.writeLock().lock();
+            try {
+                entry.peerParts.remove(peerId);
+            } finally {
+                entry.lock.writeLock().unlock();
+            }
+        }
+        return List.copyOf(fileIds);
+    }
+
+    /**
+     * Дождаться записи всех накопленных изменений в БД и остановить поток записи
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Timed out flushing pending database writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FileEntry entry(FileInfo file) {
+        return files.computeIfAbsent(file.fileId(), id -> new FileEntry(file));
+    }
+
+    private void addParts(String peerId, FileInfo file) {
+        FileEntry entry = entry(file);
+        peerFiles.computeIfAbsent(peerId, id -> ConcurrentHashMap.newKeySet()).add(file.fileId());
+        entry.lock.writeLock().lock();
+        try {
+            BitSet parts = entry.peerParts.computeIfAbsent(peerId, id -> new BitSet(entry.info.partsCount()));
+            for (int partIndex : file.parts()) {
+                if (partIndex >= 0 && partIndex < entry.info.partsCount()) {
+                    parts.set(partIndex);
+                }
+            }
+        } finally {
+            entry.lock.writeLock().unlock();
+        }
+    }
+
+    private static BitSet availableParts(FileEntry entry) {
+        BitSet available = new BitSet(entry.info.partsCount());
+        entry.lock.readLock().lock();
+        try {
+            for (BitSet parts : entry.peerParts.values()) {
+                available.or(parts);
+            }
+        } finally {
+            entry.lock.readLock().unlock();
+        }
+        return available;
+    }
+
+    private static List<Integer> toList(BitSet bits) {
+        List<Integer> list = new ArrayList<>(bits.cardinality());
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static FileInfo withParts(FileInfo info, List<Integer> parts) {
+        return new FileInfo(info.fileId(), info.size(), info.partsCount(), parts, info.partChecksums(), info.filename());
+    }
+
+    private void writeBehind(Runnable write) {
+        try {
+            writer.execute(() -> {
+                try {
+                    write.run();
+                } catch (Exception e) {
+                    logger.error("Deferred database write failed: {}", e.getMessage(), e);
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Database writer is stopped, change not persisted: {}", e.getMessage());
+        }
+    }
+}
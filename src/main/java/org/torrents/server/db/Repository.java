@@ -12,4 +12,19 @@ public interface Repository {
     public List<FileInfo> getFiles();
     public FileInfo getFile(String fileId);
     public FilePart getFilePartWithPeers(String fileId, int partIndex);
+    /**
+     * Файл только с теми частями, которые есть хотя бы у одного пира (как в getFiles)
+     * @return null, если файла нет или ни одной его части нет ни у кого
+     */
+    public FileInfo getAvailableFile(String fileId);
+    /**
+     * Удалить пир и все сведения о его частях
+     * @return идентификаторы файлов, части которых были у пира
+     */
+    public List<String> removePeer(String peerId);
+    /**
+     * Удалить всех пиров (при старте сервера все сохранённые пиры уже неактуальны)
+     * @return число удалённых пиров
+     */
+    public int removeAllPeers();
 }
@@ -12,126 +12,210 @@ import java.util.List;
 
 public class RepositoryImpl implements Repository {
 
-    public void registerPeer(String peerId, List<FileInfo> file) {
-        String registerPeerSql = "INSERT INTO peers (id) VALUES (?);";
-        String insertPeerFilePartSql = """
-                INSERT INTO file_peers (file_part_id, peer_id)
-                VALUES (?, ?);""";
-        try (Connection c = DatabaseManager.getConnection();
-             PreparedStatement registerPeerStmt = c.prepareStatement(registerPeerSql);
-             PreparedStatement insertPeerFilePartStmt = c.prepareStatement(insertPeerFilePartSql)
-        ) {
+    // Во внешнем API файлы и пиры идентифицируются строками (uid), в БД - целочисленными id
+    private static final String INSERT_PEER_SQL = "INSERT OR IGNORE INTO peers (uid) VALUES (?);";
+    private static final String SELECT_PEER_ID_SQL = "SELECT id FROM peers WHERE uid = ?;";
+    private static final String INSERT_FILE_SQL = """
+            INSERT OR IGNORE INTO files
+            (uid, name, size, parts_count)
+            VALUES (?, ?, ?, ?);""";
+    private static final String SELECT_FILE_ID_SQL = "SELECT id FROM files WHERE uid = ?;";
+    private static final String INSERT_PART_SQL = """
+            INSERT OR IGNORE INTO file_parts
+            (file_id, part_index, checksum)
+            VALUES (?, ?, ?);""";
+    private static final String INSERT_PEER_RANGE_SQL = """
+            INSERT INTO peer_ranges (file_id, peer_id, start_part, end_part)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (file_id, peer_id, start_part) DO UPDATE SET end_part = MAX(end_part, excluded.end_part);""";
 
+    /**
+     * Зарегистрировать пир и все его файлы одной транзакцией на одном соединении
+     */
+    public void registerPeer(String peerId, List<FileInfo> file) {
+        inTransaction("Failed to register peer in database", c -> {
             // создаём пир в бд
+            long peerKey = insertPeer(c, peerId);
+            // добавляем файлы (если их нет) и информацию о частях, которые есть у пира
+            for (FileInfo f : file) {
+                insertPeerParts(c, peerKey, insertFile(c, f), f);
+            }
+        });
+    }
 
-            registerPeerStmt.setString(1, peerId);
-            registerPeerStmt.executeUpdate();
+    public void createIfNotExistsFile(FileInfo file) {
+        inTransaction("Failed to create file in database", c -> insertFile(c, file));
+    }
 
-            // добавляем информацию о частях файлов, которые есть у пира
-            for (FileInfo f : file) {
-                // создаём файл, если его нет
-                FileInfo exists = getFile(f.fileId());
-                if (exists == null) {
-                    createIfNotExistsFile(f);
-                }
-                for (Integer partIndex : f.parts()) {
-                    String filePartId = f.fileId() + "_" + partIndex;
+    /**
+     * Добавить новый файл для существующего пира
+     */
+    public void addFileForPeer(String peerId, FileInfo file) {
+        inTransaction("Failed to add file for peer in database", c -> {
+            // Создаём файл в БД, если его нет, и связываем все части файла с этим пиром
+            insertPeerParts(c, insertPeer(c, peerId), insertFile(c, file), file);
+        });
+    }
 
-                    insertPeerFilePartStmt.setString(1, filePartId);
-                    insertPeerFilePartStmt.setString(2, peerId);
-                    insertPeerFilePartStmt.executeUpdate();
+    public List<String> removePeer(String peerId) {
+        List<String> fileIds = new ArrayList<>();
+        inTransaction("Failed to remove peer from database", c -> {
+            try (PreparedStatement selectFilesStmt = c.prepareStatement("""
+                    SELECT DISTINCT f.uid
+                    FROM peer_ranges r
+                             JOIN files f ON f.id = r.file_id
+                    WHERE r.peer_id = (SELECT id FROM peers WHERE uid = ?);""")) {
+                selectFilesStmt.setString(1, peerId);
+                try (ResultSet rs = selectFilesStmt.executeQuery()) {
+                    while (rs.next()) {
+                        fileIds.add(rs.getString(1));
+                    }
                 }
             }
+            // Диапазоны удаляем явно: каскад работает только при включённых внешних ключах
+            try (PreparedStatement deleteRangesStmt = c.prepareStatement(
+                    "DELETE FROM peer_ranges WHERE peer_id = (SELECT id FROM peers WHERE uid = ?);");
+                 PreparedStatement deletePeerStmt = c.prepareStatement("DELETE FROM peers WHERE uid = ?;")) {
+                deleteRangesStmt.setString(1, peerId);
+                deleteRangesStmt.executeUpdate();
+                deletePeerStmt.setString(1, peerId);
+                deletePeerStmt.executeUpdate();
+            }
+        });
+        return fileIds;
+    }
+
+    public int removeAllPeers() {
+        int[] removed = new int[1];
+        inTransaction("Failed to remove peers from database", c -> {
+            try (PreparedStatement deleteRangesStmt = c.prepareStatement("DELETE FROM peer_ranges;");
+                 PreparedStatement deletePeersStmt = c.prepareStatement("DELETE FROM peers;")) {
+                deleteRangesStmt.executeUpdate();
+                removed[0] = deletePeersStmt.executeUpdate();
+            }
+        });
+        return removed[0];
+    }
+
+    private interface SqlWork {
+        void run(Connection c) throws SQLException;
+    }
 
+    /**
+     * Выполнить work в одной транзакции: SQLite фиксирует изменения один раз, а не на каждую строку
+     */
+    private static void inTransaction(String errorMessage, SqlWork work) {
+        try (Connection c = DatabaseManager.getConnection()) {
+            boolean autoCommit = c.getAutoCommit();
+            c.setAutoCommit(false);
+            try {
+                work.run(c);
+                c.commit();
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(autoCommit);
+            }
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to register peer in database", e);
+            throw new RuntimeException(errorMessage, e);
         }
-
     }
 
-    private void executeCreateFileStmt(PreparedStatement createFileStmt, FileInfo f) throws SQLException {
-        createFileStmt.setString(1, f.fileId());
-        createFileStmt.setString(2, f.filename());
-        createFileStmt.setLong(3, f.size());
-        createFileStmt.setInt(4, f.partsCount());
-        createFileStmt.executeUpdate();
+    /**
+     * @return id пира в БД
+     */
+    private static long insertPeer(Connection c, String peerId) throws SQLException {
+        try (PreparedStatement registerPeerStmt = c.prepareStatement(INSERT_PEER_SQL)) {
+            registerPeerStmt.setString(1, peerId);
+            registerPeerStmt.executeUpdate();
+        }
+        return selectId(c, SELECT_PEER_ID_SQL, peerId);
     }
 
-    public void createIfNotExistsFile(FileInfo file) {
-        String createFileSql = """
-                INSERT OR IGNORE INTO files
-                (id, name, size, parts_count)
-                VALUES (?, ?, ?, ?);""";
-        String createPartSql = """
-                INSERT OR IGNORE INTO file_parts
-                (id, file_id, part_index, checksum)
-                VALUES (?, ?, ?, ?);""";
-
-        try (Connection c = DatabaseManager.getConnection();
-             PreparedStatement createFileStmt = c.prepareStatement(createFileSql);
-             PreparedStatement createPartStmt = c.prepareStatement(createPartSql)
-        ) {
-            executeCreateFileStmt(createFileStmt, file);
+    /**
+     * Создать файл и его части, если файла ещё нет
+     * @return id файла в БД
+     */
+    private static long insertFile(Connection c, FileInfo file) throws SQLException {
+        try (PreparedStatement createFileStmt = c.prepareStatement(INSERT_FILE_SQL)) {
+            createFileStmt.setString(1, file.fileId());
+            createFileStmt.setString(2, file.filename());
+            createFileStmt.setLong(3, file.size());
+            createFileStmt.setInt(4, file.partsCount());
+            if (createFileStmt.executeUpdate() == 0) {
+                // Файл уже есть, его части тоже
+                return selectId(c, SELECT_FILE_ID_SQL, file.fileId());
+            }
+        }
+        long fileKey = selectId(c, SELECT_FILE_ID_SQL, file.fileId());
+        try (PreparedStatement createPartStmt = c.prepareStatement(INSERT_PART_SQL)) {
             for (int partIndex = 0; partIndex < file.partsCount(); partIndex++) {
-                String filePartId = file.fileId() + "_" + partIndex;
-                createPartStmt.setString(1, filePartId);
-                createPartStmt.setString(2, file.fileId());
-                createPartStmt.setInt(3, partIndex);
+                createPartStmt.setLong(1, fileKey);
+                createPartStmt.setInt(2, partIndex);
                 // Сохраняем checksum части из FileInfo
                 String checksum = file.partChecksums() != null ? file.partChecksums().getOrDefault(partIndex, "") : "";
-                createPartStmt.setString(4, checksum);
-                createPartStmt.executeUpdate();
+                createPartStmt.setString(3, checksum);
+                createPartStmt.addBatch();
             }
+            createPartStmt.executeBatch();
+        }
+        return fileKey;
+    }
 
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to create file in database", e);
+    /**
+     * Записать части пира диапазонами: подряд идущие части дают одну строку
+     */
+    private static void insertPeerParts(Connection c, long peerKey, long fileKey, FileInfo file) throws SQLException {
+        try (PreparedStatement insertPeerRangeStmt = c.prepareStatement(INSERT_PEER_RANGE_SQL)) {
+            for (int[] range : toRanges(file.parts())) {
+                insertPeerRangeStmt.setLong(1, fileKey);
+                insertPeerRangeStmt.setLong(2, peerKey);
+                insertPeerRangeStmt.setInt(3, range[0]);
+                insertPeerRangeStmt.setInt(4, range[1]);
+                insertPeerRangeStmt.addBatch();
+            }
+            insertPeerRangeStmt.executeBatch();
         }
     }
 
     /**
-     * Добавить новый файл для существующего пира
+     * Разбить номера частей на непрерывные диапазоны [start, end]
      */
-    public void addFileForPeer(String peerId, FileInfo file) {
-        // Создаём файл в БД, если его нет
-        createIfNotExistsFile(file);
-
-        // Связываем все части файла с этим пиром
-        String insertPeerFilePartSql = """
-                INSERT OR IGNORE INTO file_peers (file_part_id, peer_id)
-                VALUES (?, ?);""";
-
-        try (Connection c = DatabaseManager.getConnection();
-             PreparedStatement insertPeerFilePartStmt = c.prepareStatement(insertPeerFilePartSql)
-        ) {
-            for (Integer partIndex : file.parts()) {
-                String filePartId = file.fileId() + "_" + partIndex;
-
-                insertPeerFilePartStmt.setString(1, filePartId);
-                insertPeerFilePartStmt.setString(2, peerId);
-                insertPeerFilePartStmt.executeUpdate();
+    static List<int[]> toRanges(List<Integer> parts) {
+        int[] sorted = parts.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < sorted.length) {
+            int start = sorted[i];
+            while (i + 1 < sorted.length && sorted[i + 1] == sorted[i] + 1) {
+                i++;
+            }
+            ranges.add(new int[]{start, sorted[i]});
+            i++;
+        }
+        return ranges;
+    }
+
+    private static long selectId(Connection c, String sql, String uid) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(sql)) {
+            stmt.setString(1, uid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Row not found for uid " + uid);
+                }
+                return rs.getLong(1);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException("Failed to add file for peer in database", e);
         }
     }
 
     public List<FileInfo> getFiles() {
         String sql = """
-                WITH available_files AS (
-                    SELECT
-                        f.id AS file_id,
-                        GROUP_CONCAT(DISTINCT fp.part_index ORDER BY fp.part_index) AS available_parts
-                    FROM files f
-                    JOIN file_parts fp ON fp.file_id = f.id
-                    JOIN file_peers ON fp.id = file_peers.file_part_id
-                    GROUP BY f.id
-                )
-                SELECT
-                    f.*,
-                    af.available_parts
+                SELECT f.*
                 FROM files f
-                         JOIN available_files af ON f.id = af.file_id
-                ORDER BY f.id;""";
+                WHERE EXISTS (SELECT 1 FROM peer_ranges r WHERE r.file_id = f.id)
+                ORDER BY f.uid;""";
+        String rangesSql = "SELECT file_id, start_part, end_part FROM peer_ranges";
 
         List<FileInfo> files = new ArrayList<>();
 
@@ -139,15 +223,24 @@ public class RepositoryImpl implements Repository {
             // Загружаем все checksums одним запросом
             java.util.Map<String, java.util.Map<Integer, String>> allChecksums = getAllPartChecksums(c);
 
+            // Доступные части каждого файла - объединение диапазонов всех пиров
+            java.util.Map<Long, java.util.BitSet> available = new java.util.HashMap<>();
+            try (PreparedStatement stmt = c.prepareStatement(rangesSql); ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    available.computeIfAbsent(rs.getLong("file_id"), k -> new java.util.BitSet())
+                            .set(rs.getInt("start_part"), rs.getInt("end_part") + 1);
+                }
+            }
+
             // Выполняем основной запрос для файлов
             try (PreparedStatement stmt = c.prepareStatement(sql); ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    String fileId = rs.getString("id");
+                    String fileId = rs.getString("uid");
                     String filename = rs.getString("name");
                     long size = rs.getLong("size");
                     int partsCount = rs.getInt("parts_count");
-                    String availablePartsStr = rs.getString("available_parts");
-                    List<Integer> availableParts = parseAvailableParts(availablePartsStr);
+                    java.util.BitSet bits = available.getOrDefault(rs.getLong("id"), new java.util.BitSet());
+                    List<Integer> availableParts = bits.get(0, partsCount).stream().boxed().toList();
 
                     // Получаем checksums из предзагруженной map
                     java.util.Map<Integer, String> partChecksums = allChecksums.getOrDefault(fileId, new java.util.HashMap<>());
@@ -165,23 +258,54 @@ public class RepositoryImpl implements Repository {
     }
 
 
+    public FileInfo getAvailableFile(String fileId) {
+        String sql = "SELECT * FROM files WHERE uid = ?;";
+        String rangesSql = "SELECT start_part, end_part FROM peer_ranges WHERE file_id = ?";
+
+        try (Connection c = DatabaseManager.getConnection(); PreparedStatement stmt = c.prepareStatement(sql)) {
+            stmt.setString(1, fileId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                int partsCount = rs.getInt("parts_count");
+                java.util.BitSet available = new java.util.BitSet(partsCount);
+                try (PreparedStatement rangesStmt = c.prepareStatement(rangesSql)) {
+                    rangesStmt.setLong(1, rs.getLong("id"));
+                    try (ResultSet ranges = rangesStmt.executeQuery()) {
+                        while (ranges.next()) {
+                            available.set(ranges.getInt("start_part"), ranges.getInt("end_part") + 1);
+                        }
+                    }
+                }
+                List<Integer> availableParts = available.get(0, partsCount).stream().boxed().toList();
+                if (availableParts.isEmpty()) {
+                    return null;
+                }
+                return new FileInfo(fileId, rs.getLong("size"), partsCount, availableParts,
+                        getPartChecksums(c, fileId), rs.getString("name"));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to get file from database", e);
+        }
+    }
+
     // Добавлен метод getFile по аналогии с getFiles(), но для одного fileId
     public FileInfo getFile(String fileId) {
         String sql = """
                 SELECT
                     f.*,
-                    GROUP_CONCAT(DISTINCT fp.part_index ORDER BY fp.part_index) AS available_parts
+                    GROUP_CONCAT(fp.part_index ORDER BY fp.part_index) AS available_parts
                 FROM files f
                          LEFT JOIN file_parts fp ON fp.file_id = f.id
-                         LEFT JOIN file_peers ON fp.id = file_peers.file_part_id
-                WHERE f.id = ?
+                WHERE f.uid = ?
                 GROUP BY f.id;""";
 
         try (Connection c = DatabaseManager.getConnection(); PreparedStatement stmt = c.prepareStatement(sql)) {
             stmt.setString(1, fileId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    String id = rs.getString("id");
+                    String id = rs.getString("uid");
                     String filename = rs.getString("name");
                     long size = rs.getLong("size");
                     int partsCount = rs.getInt("parts_count");
@@ -205,32 +329,32 @@ public class RepositoryImpl implements Repository {
 
     // Добавляем метод getFilePartWithPeers
     public FilePart getFilePartWithPeers(String fileId, int partIndex) {
-        String filePartId = fileId + "_" + partIndex;
-
         String sql = """
                 SELECT
-                    fp.id as id,
-                    fp.file_id as file_id,
+                    f.uid as file_id,
                     fp.part_index as part_index,
                     fp.checksum as checksum,
-                    GROUP_CONCAT(DISTINCT fp2.peer_id) AS peers
-                FROM file_parts fp
-                         LEFT JOIN file_peers fp2 ON fp.id = fp2.file_part_id
-                WHERE fp.id = ?
-                GROUP BY fp.id;""";
+                    GROUP_CONCAT(DISTINCT p.uid) AS peers
+                FROM files f
+                         JOIN file_parts fp ON fp.file_id = f.id
+                         LEFT JOIN peer_ranges r ON r.file_id = fp.file_id
+                    AND r.start_part <= fp.part_index AND r.end_part >= fp.part_index
+                         LEFT JOIN peers p ON p.id = r.peer_id
+                WHERE f.uid = ? AND fp.part_index = ?
+                GROUP BY fp.file_id, fp.part_index;""";
 
         try (Connection c = DatabaseManager.getConnection(); PreparedStatement stmt = c.prepareStatement(sql)) {
-            stmt.setString(1, filePartId);
+            stmt.setString(1, fileId);
+            stmt.setInt(2, partIndex);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    String id = rs.getString("id");
                     String fid = rs.getString("file_id");
                     int idx = rs.getInt("part_index");
                     String checksum = rs.getString("checksum");
                     String peersStr = rs.getString("peers");
                     List<String> peers = parsePeers(peersStr);
 
-                    return new FilePart(id, fid, idx, checksum, peers);
+                    return new FilePart(fid + "_" + idx, fid, idx, checksum, peers);
                 }
             }
 
@@ -267,7 +391,12 @@ public class RepositoryImpl implements Repository {
      * Загрузить checksums всех частей файла из БД
      */
     private java.util.Map<Integer, String> getPartChecksums(Connection c, String fileId) throws SQLException {
-        String sql = "SELECT part_index, checksum FROM file_parts WHERE file_id = ? ORDER BY part_index";
+        String sql = """
+                SELECT fp.part_index, fp.checksum
+                FROM file_parts fp
+                         JOIN files f ON f.id = fp.file_id
+                WHERE f.uid = ?
+                ORDER BY fp.part_index""";
         java.util.Map<Integer, String> checksums = new java.util.HashMap<>();
 
         try (PreparedStatement stmt = c.prepareStatement(sql)) {
@@ -290,7 +419,11 @@ public class RepositoryImpl implements Repository {
      * Загрузить все checksums для всех файлов одним запросом (оптимизация N+1)
      */
     private java.util.Map<String, java.util.Map<Integer, String>> getAllPartChecksums(Connection c) throws SQLException {
-        String sql = "SELECT file_id, part_index, checksum FROM file_parts ORDER BY file_id, part_index";
+        String sql = """
+                SELECT f.uid AS file_id, fp.part_index, fp.checksum
+                FROM file_parts fp
+                         JOIN files f ON f.id = fp.file_id
+                ORDER BY fp.file_id, fp.part_index""";
         java.util.Map<String, java.util.Map<Integer, String>> result = new java.util.HashMap<>();
 
         try (PreparedStatement stmt = c.prepareStatement(sql);
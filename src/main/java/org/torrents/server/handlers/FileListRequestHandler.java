@@ -0,0 +1,30 @@
+package org.torrents.server.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.server.ClientHandler;
+import org.torrents.server.service.BroadcastService;
+import org.torrents.shared.Message;
+
+/**
+ * Клиент пропустил изменения каталога и просит полный FILE_LIST
+ */
+public class FileListRequestHandler implements MessageHandler {
+    private static final Logger logger = LoggerFactory.getLogger(FileListRequestHandler.class);
+    private final BroadcastService broadcastService;
+
+    public FileListRequestHandler(BroadcastService broadcastService) {
+        this.broadcastService = broadcastService;
+    }
+
+    @Override
+    public void handle(Message message, ClientHandler handler) {
+        try {
+            // Через очередь рассылки: снимок берётся в момент отправки и не старше изменений в очереди
+            broadcastService.sendCatalog(handler);
+            logger.debug("Full FILE_LIST queued for {}", handler.getClientId());
+        } catch (Exception e) {
+            logger.error("Error sending FILE_LIST to {}: {}", handler.getClientId(), e.getMessage(), e);
+        }
+    }
+}
@@ -15,11 +15,12 @@ public class MessageHandlerFactory {
 
     public MessageHandlerFactory(FileService fileService, BroadcastService broadcastService, FileTransferService fileTransferService) {
         // Регистрируем обработчики для каждого типа сообщения
-        handlers.put(MessageType.REGISTER, new RegisterHandler(fileService));
+        handlers.put(MessageType.REGISTER, new RegisterHandler(fileService, broadcastService));
         handlers.put(MessageType.ADD_FILE, new AddFileHandler(fileService, broadcastService));
         handlers.put(MessageType.REQUEST_FILE, new RequestFileHandler(fileTransferService));
-        handlers.put(MessageType.SEND_CHUNK, new SendChunkHandler());
+        handlers.put(MessageType.SEND_CHUNK, new SendChunkHandler(fileTransferService));
         handlers.put(MessageType.ERROR, new ErrorHandler());
+        handlers.put(MessageType.FILE_LIST_REQUEST, new FileListRequestHandler(broadcastService));
     }
 
     public MessageHandler getHandler(MessageType messageType) {
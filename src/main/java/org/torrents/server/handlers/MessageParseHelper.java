@@ -35,7 +35,13 @@ public class MessageParseHelper {
         Map<String, Object> payload = message.getPayload();
         if (payload == null) throw new IllegalArgumentException("SEND_CHUNK payload is null");
 
-        return objectMapper.convertValue(payload, ChunkHeader.class);
+        // Заголовок чанка разбирается вручную: он приходит на каждую часть файла,
+        // и convertValue через Jackson здесь заметно дороже прямого чтения полей
+        String fileId = (String) payload.get("fileId");
+        int partIndex = ((Number) payload.get("partIndex")).intValue();
+        int length = ((Number) payload.get("length")).intValue();
+        String requestId = (String) payload.get("requestId");
+        return new ChunkHeader(fileId, partIndex, length, requestId);
     }
 
     public static ErrorInfo parseError(Message message) {
@@ -3,20 +3,22 @@ package org.torrents.server.handlers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.server.ClientHandler;
+import org.torrents.server.service.BroadcastService;
 import org.torrents.server.service.FileService;
 import org.torrents.shared.Message;
-import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
 import org.torrents.shared.schemas.FileInfo;
 
 import java.util.List;
-import java.util.Map;
 
 public class RegisterHandler implements MessageHandler {
     private static final Logger logger = LoggerFactory.getLogger(RegisterHandler.class);
     private final FileService fileService;
+    private final BroadcastService broadcastService;
 
-    public RegisterHandler(FileService fileService) {
+    public RegisterHandler(FileService fileService, BroadcastService broadcastService) {
         this.fileService = fileService;
+        this.broadcastService = broadcastService;
     }
 
     @Override
@@ -25,13 +27,15 @@ public class RegisterHandler implements MessageHandler {
             // Получаем файлы клиента
             List<FileInfo> files = MessageParseHelper.parseFileList(message);
 
+            // Клиент сообщает, умеет ли он принимать бинарные кадры
+            handler.setBinaryFrames(Boolean.TRUE.equals(message.getPayload().get(ProtocolUtil.BINARY_FRAMES_KEY)));
+
             // Регистрируем клиента и его файлы
             fileService.registerNewPeer(handler.getClientId(), files);
 
-            // Отправляем клиенту список всех доступных файлов
-            List<FileInfo> availableFiles = fileService.getFiles();
-            Message outMessage = new Message(MessageType.FILE_LIST, Map.of("files", availableFiles));
-            handler.sendMessage(outMessage);
+            // Отправляем клиенту список всех доступных файлов через его очередь рассылки,
+            // чтобы снимок не обогнал изменения каталога, отправленные после него
+            broadcastService.sendCatalog(handler);
 
             logger.info("Client {} registered with {} files", handler.getClientId(), files.size());
         } catch (Exception e) {
@@ -23,7 +23,7 @@ public class RequestFileHandler implements MessageHandler {
             logger.info("REQUEST_FILE from {}: {}", handler.getClientId(), req);
 
             // Отправляем файл клиенту
-            fileTransferService.transferFile(handler, req);
+            fileTransferService.startTransfer(handler, req);
         } catch (Exception e) {
             logger.error("Error processing REQUEST_FILE: {}", e.getMessage(), e);
         }
@@ -3,33 +3,31 @@ package org.torrents.server.handlers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.server.ClientHandler;
+import org.torrents.server.service.FileTransferService;
 import org.torrents.shared.Message;
-import org.torrents.shared.ProtocolUtil;
-import org.torrents.shared.schemas.ChunkData;
 import org.torrents.shared.schemas.ChunkHeader;
 
-import java.util.concurrent.CompletableFuture;
+import java.io.IOException;
 
 public class SendChunkHandler implements MessageHandler {
     private static final Logger logger = LoggerFactory.getLogger(SendChunkHandler.class);
+    private final FileTransferService fileTransferService;
+
+    public SendChunkHandler(FileTransferService fileTransferService) {
+        this.fileTransferService = fileTransferService;
+    }
 
     @Override
     public void handle(Message message, ClientHandler handler) {
         try {
             ChunkHeader header = MessageParseHelper.parseSendChunkHeader(message);
-            byte[] data = ProtocolUtil.readChunkData(handler.getIn(), header.length());
-            if (data == null) {
-                logger.warn("Received EOF while reading chunk body from client {}", handler.getClientId());
-                handler.setRunning(false);
-                return;
-            }
-            String requestId = header.requestId();
-            CompletableFuture<ChunkData> f = handler.getPendingRequests().remove(requestId);
-            if (f != null) {
-                f.complete(new ChunkData(header.fileId(), header.partIndex(), data));
-            }
+            fileTransferService.receiveChunk(handler, header);
             logger.debug("Received chunk data from {}: fileId={}, partIndex={}",
                 handler.getClientId(), header.fileId(), header.partIndex());
+        } catch (IOException e) {
+            // Тело чанка не удалось дочитать - поток пира дальше разбирать нельзя
+            logger.warn("Failed to read chunk body from client {}: {}", handler.getClientId(), e.getMessage());
+            handler.setRunning(false);
         } catch (Exception e) {
             logger.error("Error processing SEND_CHUNK from {}: {}", handler.getClientId(), e.getMessage(), e);
         }
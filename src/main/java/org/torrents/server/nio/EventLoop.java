@@ -0,0 +1,119 @@
+package org.torrents.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Поток с Selector, обслуживающий чтение и запись набора соединений.
+ * Всё состояние соединений меняется только в этом потоке, другие потоки передают задачи через execute
+ */
+public class EventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Выполнить задачу в потоке цикла
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Зарегистрировать соединение в цикле
+     */
+    public void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+            } catch (IOException e) {
+                logger.error("Failed to register connection: {}", e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                logger.error("Event loop failed: {}", e.getMessage(), e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Event loop task failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+        }
+    }
+
+    /**
+     * Остановить цикл и закрыть все его соединения
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
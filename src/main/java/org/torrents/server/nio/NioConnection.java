@@ -0,0 +1,373 @@
+package org.torrents.server.nio;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.server.ClientHandler;
+import org.torrents.server.service.BufferPool;
+import org.torrents.shared.Message;
+import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Неблокирующее соединение с клиентом.
+ * Входящие кадры собираются в EventLoop и по одному передаются ClientHandler в пуле обработчиков;
+ * пока кадр обрабатывается, чтение из сокета приостановлено, поэтому порядок сообщений сохраняется.
+ * Для ClientHandler соединение выглядит как пара обычных потоков:
+ * in отдаёт тело текущего SEND_CHUNK, out складывает данные в очередь на отправку.
+ * Тело чанка собирается в буфере из общего пула и возвращается в пул после обработки кадра
+ */
+public class NioConnection {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnection.class);
+    private static final int INITIAL_READ_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_READ_BUFFER_SIZE = ProtocolUtil.MAX_MESSAGE_LENGTH + 4;
+
+    @Getter
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Executor workers;
+    private final int maxPendingWriteBytes;
+    private final BufferPool bodyBuffers;
+    @Getter
+    private final OutputStream outputStream = new ChannelOutputStream();
+    private final FrameInputStream frameInputStream = new FrameInputStream();
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition drained = writeLock.newCondition();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private long pendingWriteBytes;
+
+    @Setter
+    private ClientHandler handler;
+    private SelectionKey key;
+
+    // Состояние разбора входящих кадров, используется только потоком EventLoop
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private Message chunkMessage;
+    private byte[] chunkBody;
+    private int chunkBodyLength;
+    private int chunkBodyFilled;
+    private boolean dispatching;
+
+    public NioConnection(SocketChannel channel, EventLoop loop, Executor workers, int maxPendingWriteBytes,
+                         BufferPool bodyBuffers) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+        this.bodyBuffers = bodyBuffers;
+    }
+
+    public InputStream getInputStream() {
+        return frameInputStream;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Сокет готов к чтению (поток EventLoop)
+     */
+    void onReadable() {
+        int read;
+        try {
+            if (chunkMessage != null && readBuffer.position() == 0) {
+                // Тело чанка читаем сразу в его буфер, минуя буфер чтения
+                read = channel.read(ByteBuffer.wrap(chunkBody, chunkBodyFilled, chunkBodyLength - chunkBodyFilled));
+                if (read > 0) {
+                    chunkBodyFilled += read;
+                }
+            } else {
+                read = channel.read(readBuffer);
+            }
+        } catch (IOException e) {
+            logger.warn("Error reading from client {}: {}", clientId(), e.getMessage());
+            close();
+            return;
+        }
+        if (read < 0) {
+            logger.info("Client {} disconnected (EOF)", clientId());
+            close();
+            return;
+        }
+        processFrames();
+    }
+
+    /**
+     * Разобрать все полные кадры из буфера чтения, пока один из них не ушёл на обработку
+     */
+    private void processFrames() {
+        readBuffer.flip();
+        try {
+            while (!dispatching) {
+                if (chunkMessage != null) {
+                    int n = Math.min(readBuffer.remaining(), chunkBodyLength - chunkBodyFilled);
+                    readBuffer.get(chunkBody, chunkBodyFilled, n);
+                    chunkBodyFilled += n;
+                    if (chunkBodyFilled < chunkBodyLength) {
+                        break;
+                    }
+                    dispatch(chunkMessage, chunkBody, chunkBodyLength);
+                    chunkMessage = null;
+                    chunkBody = null;
+                    continue;
+                }
+
+                Message message = ProtocolUtil.decodeFrame(readBuffer);
+                if (message == null) {
+                    break;
+                }
+                if (message.getType() == MessageType.SEND_CHUNK) {
+                    // Тело чанка идёт следом за заголовком, ждём его целиком.
+                    // Длина приходит от пира, поэтому ограничена размером части
+                    int length = ((Number) message.getPayload().get("length")).intValue();
+                    if (length < 0 || length > ProtocolUtil.PART_SIZE) {
+                        throw new IOException("Invalid chunk length " + length);
+                    }
+                    chunkMessage = message;
+                    chunkBody = bodyBuffers.acquire();
+                    chunkBodyLength = length;
+                    chunkBodyFilled = 0;
+                    continue;
+                }
+                dispatch(message, null, 0);
+            }
+        } catch (Exception e) {
+            logger.warn("Invalid frame from client {}: {}", clientId(), e.getMessage());
+            close();
+            return;
+        }
+        readBuffer.compact();
+
+        if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE) {
+            // Большой заголовок разобран - не держим увеличенный буфер у простаивающего соединения
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        } else if (!dispatching && !readBuffer.hasRemaining()) {
+            // Заголовок не помещается в буфер - увеличиваем его
+            int newSize = Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER_SIZE);
+            if (newSize > readBuffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(newSize);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+        updateReadInterest();
+    }
+
+    private void dispatch(Message message, byte[] body, int bodyLength) {
+        dispatching = true;
+        try {
+            workers.execute(() -> {
+                try {
+                    frameInputStream.setBody(body, bodyLength);
+                    handler.handleMessage(message);
+                } catch (Exception e) {
+                    logger.error("Error handling message from client {}: {}", clientId(), e.getMessage(), e);
+                } finally {
+                    frameInputStream.setBody(null, 0);
+                    // Обработчик копирует тело из потока, после него буфер больше не нужен
+                    bodyBuffers.release(body);
+                    if (handler.isRunning()) {
+                        loop.execute(this::onDispatched);
+                    } else {
+                        close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Failed to dispatch message from client {}: {}", clientId(), e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Обработка кадра завершена - продолжаем разбор (поток EventLoop)
+     */
+    private void onDispatched() {
+        if (closed.get()) {
+            return;
+        }
+        dispatching = false;
+        processFrames();
+    }
+
+    private void updateReadInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(dispatching ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Сокет готов к записи (поток EventLoop)
+     */
+    void onWritable() {
+        try {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return;
+                }
+                outbound.poll();
+                releaseWriteBytes(head.limit());
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            logger.warn("Error writing to client {}: {}", clientId(), e.getMessage());
+            close();
+        }
+    }
+
+    private void requestWrite() {
+        if (key != null && key.isValid() && !outbound.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void releaseWriteBytes(int bytes) {
+        writeLock.lock();
+        try {
+            pendingWriteBytes -= bytes;
+            drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Закрыть соединение. Повторные вызовы игнорируются
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        outbound.clear();
+        writeLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
+    private String clientId() {
+        return handler != null ? handler.getClientId() : String.valueOf(channel);
+    }
+
+    /**
+     * Поток записи: данные копируются в очередь соединения и отправляются потоком EventLoop.
+     * Если в очереди больше maxPendingWriteBytes, пишущий поток ждёт её опустошения
+     */
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            writeLock.lock();
+            try {
+                while (!closed.get() && pendingWriteBytes > 0 && pendingWriteBytes + len > maxPendingWriteBytes) {
+                    drained.await();
+                }
+                if (closed.get()) {
+                    throw new IOException("Connection closed");
+                }
+                pendingWriteBytes += len;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for write queue");
+            } finally {
+                writeLock.unlock();
+            }
+            outbound.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            loop.execute(NioConnection.this::requestWrite);
+        }
+
+        @Override
+        public void close() {
+            NioConnection.this.close();
+        }
+    }
+
+    /**
+     * Поток чтения тела текущего SEND_CHUNK
+     */
+    private static class FrameInputStream extends InputStream {
+        private byte[] body;
+        private int length;
+        private int position;
+
+        void setBody(byte[] body, int length) {
+            this.body = body;
+            this.length = length;
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            if (body == null || position >= length) {
+                return -1;
+            }
+            return body[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int available = available();
+            if (available == 0) {
+                return -1;
+            }
+            int n = Math.min(len, available);
+            System.arraycopy(body, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return body == null ? 0 : length - position;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.torrents.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.server.ClientHandler;
+import org.torrents.server.service.BufferPool;
+import org.torrents.shared.ProtocolUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+
+/**
+ * Сервер на основе Selector: соединения распределяются по нескольким EventLoop,
+ * простаивающие клиенты не занимают отдельных потоков
+ */
+public class NioServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioServer.class);
+    private final int port;
+    private final int eventLoopCount;
+    private final int maxPendingWriteBytes;
+    // Буферы под тела SEND_CHUNK, общие для всех соединений
+    private final BufferPool bodyBuffers;
+    private final Executor workers;
+    private final BiFunction<OutputStream, InputStream, ClientHandler> handlerFactory;
+    private final List<EventLoop> loops = new ArrayList<>();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    /**
+     * @param bodyBufferPoolSize сколько буферов под тела чанков держать в пуле
+     * @param workers            пул, в котором выполняются обработчики сообщений
+     * @param handlerFactory     создаёт ClientHandler для потоков нового соединения
+     */
+    public NioServer(int port, int eventLoopCount, int maxPendingWriteBytes, int bodyBufferPoolSize,
+                     Executor workers, BiFunction<OutputStream, InputStream, ClientHandler> handlerFactory) {
+        this.port = port;
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+        this.bodyBuffers = new BufferPool(ProtocolUtil.PART_SIZE, bodyBufferPoolSize);
+        this.workers = workers;
+        this.handlerFactory = handlerFactory;
+    }
+
+    /**
+     * Запустить циклы и принимать соединения в текущем потоке до вызова stop()
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (int i = 0; i < eventLoopCount; i++) {
+            EventLoop loop = new EventLoop();
+            loop.start("nio-loop-" + i);
+            loops.add(loop);
+        }
+        running = true;
+        logger.info("NIO server started on port {} with {} event loops", port, eventLoopCount);
+
+        int next = 0;
+        while (running && serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting connection: {}", e.getMessage(), e);
+                }
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops.get(next++ % loops.size());
+                NioConnection connection = new NioConnection(channel, loop, workers, maxPendingWriteBytes, bodyBuffers);
+                ClientHandler handler = handlerFactory.apply(connection.getOutputStream(), connection.getInputStream());
+                connection.setHandler(handler);
+                loop.register(connection);
+            } catch (Exception e) {
+                logger.error("Error creating client connection: {}", e.getMessage(), e);
+                try {
+                    channel.close();
+                } catch (IOException closeEx) {
+                    logger.error("Error closing channel: {}", closeEx.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Перестать принимать соединения и закрыть все открытые
+     */
+    public void stop() {
+        running = false;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                logger.error("Error closing server channel: {}", e.getMessage());
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -3,48 +3,197 @@ package org.torrents.server.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.server.ClientHandler;
-import org.torrents.shared.Message;
-import org.torrents.shared.MessageType;
-import org.torrents.shared.schemas.FileInfo;
+import org.torrents.server.ServerConfig;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BroadcastService {
     private static final Logger logger = LoggerFactory.getLogger(BroadcastService.class);
     private final PeerService peerService;
     private final FileService fileService;
-    private final ExecutorService broadcastExecutor;
+    private final ServerConfig config;
+    private final ScheduledExecutorService broadcastExecutor;
+    // Запись в сокеты клиентов: медленный клиент блокирует только свою задачу
+    private final ExecutorService writerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    // Рассылка уже запланирована, новые изменения попадут в неё
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Последняя разосланная версия каталога, меняется только в потоке рассылки
+    private long broadcastVersion;
 
-    public BroadcastService(PeerService peerService, FileService fileService) {
+    /**
+     * Очередь кадров рассылки одного клиента, разбирается одной задачей записи
+     */
+    private static class Outbox {
+        final ClientHandler client;
+        final BlockingQueue<byte[]> frames;
+        final AtomicBoolean draining = new AtomicBoolean(false);
+        // Очередь переполнялась: перед следующими кадрами отправить полный каталог
+        volatile boolean resync;
+
+        Outbox(ClientHandler client, int capacity) {
+            this.client = client;
+            this.frames = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    public BroadcastService(PeerService peerService, FileService fileService, ServerConfig config) {
         this.peerService = peerService;
         this.fileService = fileService;
-        this.broadcastExecutor = Executors.newSingleThreadExecutor();
+        this.config = config;
+        this.broadcastExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.broadcastVersion = fileService.getCatalog().getVersion();
     }
 
     /**
-     * Рассылка обновленного списка файлов всем подключенным клиентам
+     * Рассылка изменений списка файлов всем подключенным клиентам.
+     * Вызовы в течение broadcastDebounceMs объединяются в одну рассылку
      */
     public void broadcastFileList() {
-        broadcastExecutor.submit(() -> {
-            List<ClientHandler> clients = peerService.getAllPeers();
-            if (clients == null) return;
-
-            List<FileInfo> availableFiles = fileService.getFiles();
-            Message outMessage = new Message(MessageType.FILE_LIST, Map.of("files", availableFiles));
-
-            for (ClientHandler client : new ArrayList<>(clients)) {
-                try {
-                    client.sendMessage(outMessage);
-                } catch (Exception e) {
-                    logger.error("Failed to send FILE_LIST to client {}: {}", client.getClientId(), e.getMessage());
+        if (broadcastExecutor.isShutdown()) {
+            // Сервер останавливается, клиенты всё равно будут отключены
+            return;
+        }
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            broadcastExecutor.schedule(this::sendFileList, config.broadcastDebounceMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            logger.debug("Broadcast skipped, service is shut down");
+        }
+    }
+
+    /**
+     * Отправить клиенту полный каталог через его очередь рассылки.
+     * Снимок берётся в потоке записи в момент отправки, поэтому изменения, поставленные в очередь
+     * после него, не могут его обогнать, а уже учтённые в нём клиент пропустит по версии
+     */
+    public void sendCatalog(ClientHandler client) {
+        Outbox outbox = outboxes.computeIfAbsent(client.getClientId(),
+                id -> new Outbox(client, config.broadcastQueueFrames));
+        outbox.resync = true;
+        startDraining(outbox);
+    }
+
+    /**
+     * Забыть очередь отключившегося клиента
+     */
+    public void onClientDisconnected(String clientId) {
+        outboxes.remove(clientId);
+    }
+
+    private void sendFileList() {
+        // Изменения после этой точки запланируют следующую рассылку
+        scheduled.set(false);
+        List<ClientHandler> clients = peerService.getAllPeers();
+        if (clients == null) return;
+
+        // Клиентам уходят только изменения с прошлой рассылки, каждое закодировано один раз.
+        // Если история изменений уже вытеснена - полный каталог
+        List<byte[]> frames = new ArrayList<>();
+        try {
+            List<CatalogDelta> deltas = fileService.getDeltasSince(broadcastVersion);
+            // Изменений больше, чем поместится в очередь клиента: один полный каталог дешевле
+            if (deltas == null || deltas.size() > config.broadcastQueueFrames) {
+                CatalogSnapshot catalog = fileService.getCatalog();
+                frames.add(catalog.getFrame());
+                broadcastVersion = catalog.getVersion();
+            } else {
+                for (CatalogDelta delta : deltas) {
+                    frames.add(delta.getFrame());
+                    broadcastVersion = delta.getVersion();
                 }
             }
-        });
+        } catch (IOException e) {
+            logger.error("Failed to encode FILE_LIST update: {}", e.getMessage(), e);
+            return;
+        }
+        if (frames.isEmpty()) return;
+
+        for (ClientHandler client : new ArrayList<>(clients)) {
+            Outbox outbox = outboxes.computeIfAbsent(client.getClientId(),
+                    id -> new Outbox(client, config.broadcastQueueFrames));
+            for (byte[] frame : frames) {
+                if (!outbox.frames.offer(frame)) {
+                    onQueueFull(outbox);
+                    break;
+                }
+            }
+            startDraining(outbox);
+        }
+    }
+
+    /**
+     * Клиент не успевает забирать рассылку
+     */
+    private void onQueueFull(Outbox outbox) {
+        String clientId = outbox.client.getClientId();
+        if (config.slowConsumerPolicy == ServerConfig.SlowConsumerPolicy.DISCONNECT) {
+            logger.warn("Client {} is not keeping up with catalog updates, disconnecting", clientId);
+            outboxes.remove(clientId);
+            outbox.frames.clear();
+            outbox.client.close();
+            return;
+        }
+        logger.warn("Client {} is not keeping up with catalog updates, will resend full FILE_LIST", clientId);
+        outbox.frames.clear();
+        outbox.resync = true;
+    }
+
+    private void startDraining(Outbox outbox) {
+        if (!outbox.draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writerExecutor.execute(() -> drain(outbox));
+        } catch (RejectedExecutionException e) {
+            outbox.draining.set(false);
+        }
+    }
+
+    private void drain(Outbox outbox) {
+        try {
+            while (true) {
+                byte[] frame;
+                if (outbox.resync) {
+                    outbox.resync = false;
+                    // Снимок берётся в момент отправки, поэтому он не старше оставшихся в очереди изменений
+                    frame = fileService.getCatalog().getFrame();
+                } else {
+                    frame = outbox.frames.poll();
+                }
+                if (frame == null) {
+                    outbox.draining.set(false);
+                    // Кадр мог быть добавлен после poll, но до сброса флага
+                    if ((outbox.frames.isEmpty() && !outbox.resync) || !outbox.draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                outbox.client.sendFrame(frame);
+            }
+        } catch (Exception e) {
+            // Клиент, скорее всего, отключился; при следующей рассылке очередь будет создана заново
+            outboxes.remove(outbox.client.getClientId(), outbox);
+            outbox.draining.set(false);
+            outbox.frames.clear();
+            logger.error("Failed to send FILE_LIST update to client {}: {}",
+                    outbox.client.getClientId(), e.getMessage());
+        }
     }
 
     /**
@@ -53,6 +202,8 @@ public class BroadcastService {
     public void shutdown() {
         // Запрещаем новые задачи
         broadcastExecutor.shutdown();
+        // Недоставленные изменения каталога не нужны: клиенты всё равно будут отключены
+        writerExecutor.shutdownNow();
 
         try {
             // Ждём завершения текущих
@@ -68,4 +219,3 @@ public class BroadcastService {
         logger.info("Broadcast service shut down successfully");
     }
 }
-
@@ -0,0 +1,29 @@
+package org.torrents.server.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Ограниченный пул буферов для пересылки чанков между пирами.
+ * Если свободных буферов нет, выдаётся новый; в пул возвращается не больше maxPooled буферов
+ */
+public class BufferPool {
+    private final BlockingQueue<byte[]> buffers;
+    private final int bufferSize;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
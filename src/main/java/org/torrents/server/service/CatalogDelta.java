@@ -0,0 +1,59 @@
+package org.torrents.server.service;
+
+import org.torrents.shared.Message;
+import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
+import org.torrents.shared.schemas.FileAvailability;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Изменение каталога от версии baseVersion к version.
+ * Новые файлы передаются целиком, у уже известных клиенту - только список доступных частей
+ */
+public final class CatalogDelta {
+    private final long baseVersion;
+    private final long version;
+    private final List<FileInfo> added;
+    private final List<FileAvailability> changed;
+    private final List<String> removed;
+    private volatile byte[] frame;
+
+    CatalogDelta(long baseVersion, long version, List<FileInfo> added, List<FileAvailability> changed,
+                 List<String> removed) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.added = List.copyOf(added);
+        this.changed = List.copyOf(changed);
+        this.removed = List.copyOf(removed);
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Готовый кадр FILE_LIST_UPDATE для ClientHandler.sendFrame
+     */
+    public byte[] getFrame() throws IOException {
+        byte[] encoded = frame;
+        if (encoded == null) {
+            encoded = ProtocolUtil.encodeMessage(new Message(MessageType.FILE_LIST_UPDATE, Map.of(
+                    ProtocolUtil.CATALOG_BASE_VERSION_KEY, baseVersion,
+                    ProtocolUtil.CATALOG_VERSION_KEY, version,
+                    "added", added,
+                    "changed", changed,
+                    "removed", removed
+            )));
+            frame = encoded;
+        }
+        return encoded;
+    }
+}
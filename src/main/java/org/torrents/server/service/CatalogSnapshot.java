@@ -0,0 +1,62 @@
+package org.torrents.server.service;
+
+import org.torrents.shared.Message;
+import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Неизменяемый снимок каталога файлов с номером версии.
+ * Кадр FILE_LIST кодируется один раз на версию, при первой отправке
+ */
+public final class CatalogSnapshot {
+    private final long version;
+    private final SortedMap<String, FileInfo> files;
+    private final List<FileInfo> fileList;
+    private volatile byte[] frame;
+
+    CatalogSnapshot(long version, SortedMap<String, FileInfo> files) {
+        this.version = version;
+        this.files = Collections.unmodifiableSortedMap(new TreeMap<>(files));
+        this.fileList = List.copyOf(files.values());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Файлы, у которых есть хотя бы одна доступная часть, по возрастанию fileId
+     */
+    public List<FileInfo> getFiles() {
+        return fileList;
+    }
+
+    SortedMap<String, FileInfo> filesById() {
+        return files;
+    }
+
+    /**
+     * Готовый кадр FILE_LIST для ClientHandler.sendFrame
+     */
+    public byte[] getFrame() throws IOException {
+        byte[] encoded = frame;
+        if (encoded == null) {
+            // Гонка безопасна: оба потока получат одинаковые байты
+            encoded = ProtocolUtil.encodeMessage(new Message(MessageType.FILE_LIST, Map.of(
+                    "files", fileList,
+                    ProtocolUtil.CATALOG_VERSION_KEY, version,
+                    ProtocolUtil.BINARY_FRAMES_KEY, true
+            )));
+            frame = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,150 @@
+package org.torrents.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.torrents.shared.ProtocolUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU-кэш частей файлов в памяти сервера с ограничением по суммарному размеру.
+ * В кэш попадают только части, совпавшие с контрольной суммой из file_parts.
+ * Часть считается популярной и кэшируется только со второго промаха подряд: иначе каждая
+ * пересылка требовала бы копии тела и вычисления SHA-256, даже если часть больше никому не нужна
+ */
+public class ChunkCache {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkCache.class);
+    private final long maxBytes;
+    // accessOrder = true: при чтении запись переносится в конец, вытесняются записи из начала
+    private final LinkedHashMap<PartKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long usedBytes;
+    // Недавние промахи по частям (число промахов), тоже в порядке LRU и ограничены по числу
+    private final LinkedHashMap<PartKey, Integer> recentMisses = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxRecentMisses;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes суммарный размер частей в кэше; 0 отключает кэш
+     */
+    public ChunkCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        // Промахов помним в несколько раз больше, чем частей помещается в кэш
+        this.maxRecentMisses = (int) Math.min(1 << 20, Math.max(1024, this.maxBytes / ProtocolUtil.PART_SIZE * 4));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Поместится ли часть такого размера в кэш
+     */
+    public boolean accepts(int length) {
+        return isEnabled() && length <= maxBytes;
+    }
+
+    /**
+     * @return данные части или null, если её нет в кэше
+     */
+    public byte[] get(String fileId, int partIndex) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] data;
+        PartKey key = new PartKey(fileId, partIndex);
+        lock.lock();
+        try {
+            data = entries.get(key);
+            if (data == null) {
+                recentMisses.merge(key, 1, Integer::sum);
+                Iterator<PartKey> it = recentMisses.keySet().iterator();
+                while (recentMisses.size() > maxRecentMisses && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        (data != null ? hits : misses).incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Запрашивалась ли часть недавно больше одного раза: только такие части стоит копировать для кэша
+     */
+    public boolean isHot(String fileId, int partIndex) {
+        if (!isEnabled()) {
+            return false;
+        }
+        lock.lock();
+        try {
+            Integer misses = recentMisses.get(new PartKey(fileId, partIndex));
+            return misses != null && misses > 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Положить часть в кэш, если её SHA-256 совпадает с checksum.
+     * Части без известной контрольной суммы не кэшируются
+     */
+    public void put(String fileId, int partIndex, byte[] data, String checksum) {
+        if (!accepts(data.length) || checksum == null || checksum.isEmpty()) {
+            return;
+        }
+        if (!checksum.equalsIgnoreCase(sha256(data))) {
+            logger.warn("Checksum mismatch for part {} of file {}, not caching", partIndex, fileId);
+            return;
+        }
+        lock.lock();
+        try {
+            PartKey key = new PartKey(fileId, partIndex);
+            recentMisses.remove(key);
+            byte[] previous = entries.put(key, data);
+            usedBytes += data.length - (previous != null ? previous.length : 0);
+            Iterator<Map.Entry<PartKey, byte[]>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                usedBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
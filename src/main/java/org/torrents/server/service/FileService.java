@@ -1,19 +1,37 @@
 package org.torrents.server.service;
 
 import org.torrents.server.db.Repository;
+import org.torrents.shared.schemas.FileAvailability;
 import org.torrents.shared.schemas.FileInfo;
 import org.torrents.shared.schemas.FilePart;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Сервис для работы с файлами
  */
 public class FileService {
+    // Сколько последних изменений каталога хранится для рассылки; отставшим клиентам уходит полный FILE_LIST
+    private static final int MAX_DELTA_HISTORY = 256;
     private final Repository repository;
+    // Текущий снимок каталога; заменяется целиком при каждом изменении
+    private volatile CatalogSnapshot catalog;
+    private final Deque<CatalogDelta> deltas = new ArrayDeque<>();
 
     public FileService(Repository repository) {
         this.repository = repository;
+        SortedMap<String, FileInfo> files = new TreeMap<>();
+        for (FileInfo file : repository.getFiles()) {
+            files.put(file.fileId(), file);
+        }
+        this.catalog = new CatalogSnapshot(0, files);
     }
 
     /**
@@ -21,10 +39,38 @@ public class FileService {
      */
     public void addFileForPeer(String peerId, FileInfo file) {
         repository.addFileForPeer(peerId, file);
+        updateCatalog(List.of(file.fileId()));
     }
 
     public List<FileInfo> getFiles() {
-        return repository.getFiles();
+        return catalog.getFiles();
+    }
+
+    /**
+     * Текущий снимок каталога
+     */
+    public CatalogSnapshot getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Изменения каталога после версии version по порядку
+     * @return null, если часть изменений уже вытеснена из истории и нужен полный FILE_LIST
+     */
+    public synchronized List<CatalogDelta> getDeltasSince(long version) {
+        if (version >= catalog.getVersion()) {
+            return List.of();
+        }
+        if (deltas.isEmpty() || deltas.peekFirst().getBaseVersion() > version) {
+            return null;
+        }
+        List<CatalogDelta> result = new ArrayList<>();
+        for (CatalogDelta delta : deltas) {
+            if (delta.getBaseVersion() >= version) {
+                result.add(delta);
+            }
+        }
+        return result;
     }
 
     public FileInfo getFile(String fileId) {
@@ -43,5 +89,51 @@ public class FileService {
      */
     public void registerNewPeer(String peerId, List<FileInfo> files) {
         repository.registerPeer(peerId, files);
+        updateCatalog(files.stream().map(FileInfo::fileId).toList());
+    }
+
+    /**
+     * Убрать отключившийся пир из списка владельцев частей
+     */
+    public void removePeer(String peerId) {
+        updateCatalog(repository.removePeer(peerId));
+    }
+
+    /**
+     * Пересобрать в каталоге только затронутые файлы и запомнить изменение.
+     * Версия увеличивается, только если каталог действительно изменился
+     */
+    private synchronized void updateCatalog(Collection<String> fileIds) {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        CatalogSnapshot current = catalog;
+        SortedMap<String, FileInfo> files = new TreeMap<>(current.filesById());
+        List<FileInfo> added = new ArrayList<>();
+        List<FileAvailability> changed = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String fileId : fileIds) {
+            FileInfo file = repository.getAvailableFile(fileId);
+            FileInfo previous = file != null ? files.put(fileId, file) : files.remove(fileId);
+            if (Objects.equals(previous, file)) {
+                continue;
+            }
+            if (file == null) {
+                removed.add(fileId);
+            } else if (previous == null) {
+                added.add(file);
+            } else {
+                changed.add(new FileAvailability(fileId, file.parts()));
+            }
+        }
+        if (added.isEmpty() && changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        long version = current.getVersion() + 1;
+        deltas.addLast(new CatalogDelta(current.getVersion(), version, added, changed, removed));
+        if (deltas.size() > MAX_DELTA_HISTORY) {
+            deltas.removeFirst();
+        }
+        catalog = new CatalogSnapshot(version, files);
     }
-}
\ No newline at end of file
+}
@@ -3,22 +3,34 @@ package org.torrents.server.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.torrents.server.ClientHandler;
+import org.torrents.server.ServerConfig;
 import org.torrents.server.db.Repository;
 import org.torrents.shared.Message;
 import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
 import org.torrents.shared.schemas.ChunkData;
+import org.torrents.shared.schemas.ChunkHeader;
 import org.torrents.shared.schemas.FileInfo;
 import org.torrents.shared.schemas.FilePart;
 import org.torrents.shared.schemas.RequestFile;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Сервис для передачи файлов между пирами
@@ -27,81 +39,468 @@ public class FileTransferService {
     private static final Logger logger = LoggerFactory.getLogger(FileTransferService.class);
     PeerService peerService;
     Repository repository;
+    private final ServerConfig config;
+    private final BufferPool relayBuffers;
+    private final Executor transferExecutor;
+    private final ChunkCache chunkCache;
+    // Выполняющиеся запросы частей, к которым присоединяются другие клиенты
+    private final Map<PartKey, PartFetch> inFlightParts = new ConcurrentHashMap<>();
+    // Сроки ответа на запросы частей: по истечении запрос снимается у пира и ожидающий узнаёт об этом сразу
+    private final TimerWheel requestDeadlines = new TimerWheel("request-deadlines", 10, 512);
 
-    public FileTransferService(PeerService peerService, Repository repository) {
+    /**
+     * @param transferExecutor пул, в котором выполняются передачи и запросы отдельных частей
+     */
+    public FileTransferService(PeerService peerService, Repository repository, ServerConfig config,
+                               Executor transferExecutor) {
         this.peerService = peerService;
         this.repository = repository;
+        this.config = config;
+        this.relayBuffers = new BufferPool(config.relayBufferSize, config.relayBufferPoolSize);
+        this.transferExecutor = transferExecutor;
+        this.chunkCache = new ChunkCache(config.chunkCacheBytes);
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    public void shutdown() {
+        requestDeadlines.stop();
+    }
+
+    /**
+     * Запустить передачу файла клиенту в пуле передач, не блокируя поток чтения клиента
+     */
+    public void startTransfer(ClientHandler client, RequestFile clientRequest) {
+        transferExecutor.execute(() -> {
+            try {
+                transferFile(client, clientRequest);
+            } catch (Exception e) {
+                logger.error("File transfer for client {} failed: {}", client.getClientId(), e.getMessage());
+            }
+        });
     }
 
     /**
-     * Получить все доступные части файла и отправить клиенту
+     * Получить все доступные части файла и отправить клиенту.
+     * Части запрашиваются параллельно у разных пиров, одновременно не больше config.transferWindow
      */
-    public void transferFile(ClientHandler client, RequestFile clientRequest) {
+    public void transferFile(ClientHandler client, RequestFile clientRequest) throws IOException, InterruptedException {
         // Определяем, нужны ли все части файла
         boolean allFileNeeded = clientRequest.partsNeeded() == null || clientRequest.partsNeeded().isEmpty();
 
         // Получаем информацию о файле
         FileInfo fileInfo = repository.getFile(clientRequest.fileId());
+        if (fileInfo == null) {
+            client.sendMessage(new Message(MessageType.ERROR, Map.of(
+                    "code", 404,
+                    "message", "File not found: " + clientRequest.fileId()
+            )));
+            return;
+        }
         List<Integer> partsToSend = allFileNeeded ? fileInfo.parts() : clientRequest.partsNeeded();
         logger.info("Starting file transfer for client {}: fileId={}, parts={}",
                 client.getClientId(), clientRequest.fileId(), partsToSend.size());
 
+        Semaphore window = new Semaphore(Math.max(1, config.transferWindow));
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+
         for (int partIndex : partsToSend) {
-            // Получаем информацию о пирах, у которых есть данная часть файла
-            FilePart partInfo = repository.getFilePartWithPeers(clientRequest.fileId(), partIndex);
-            List<String> peers = partInfo.peers();
-            String chosenPeer = null;
+            window.acquire();
+            // После ошибки или отключения клиента новые части не запрашиваем
+            if (failed.get() || !client.isRunning()) {
+                window.release();
+                break;
+            }
+            int partLength = partLength(fileInfo, partIndex);
+            CompletableFuture<Void> part = CompletableFuture.runAsync(
+                    () -> transferPart(client, clientRequest.fileId(), partIndex, partLength), transferExecutor);
+            part.whenComplete((result, error) -> {
+                if (error != null) {
+                    failed.set(true);
+                }
+                window.release();
+            });
+            inFlight.add(part);
+        }
+
+        CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(e -> null)
+                .join();
+        logger.info("File transfer for client {} finished: fileId={}, failed={}",
+                client.getClientId(), clientRequest.fileId(), failed.get());
+    }
+
+    /**
+     * Длина части: все части, кроме последней, имеют размер ProtocolUtil.PART_SIZE
+     */
+    private static int partLength(FileInfo fileInfo, int partIndex) {
+        return (int) Math.min(ProtocolUtil.PART_SIZE, fileInfo.size() - (long) partIndex * ProtocolUtil.PART_SIZE);
+    }
+
+    /**
+     * Запросить одну часть файла и передать её клиенту.
+     * Одновременные запросы одной части разными клиентами объединяются: к пирам уходит один запрос,
+     * остальные клиенты получают те же данные, когда он завершится
+     */
+    private void transferPart(ClientHandler client, String fileId, int partIndex, int partLength) {
+        // Популярные части отдаём из кэша, не обращаясь к пирам
+        byte[] cached = chunkCache.get(fileId, partIndex);
+        if (cached != null) {
+            sendToClient(client, new ChunkData(fileId, partIndex, cached));
+            return;
+        }
+
+        PartKey key = new PartKey(fileId, partIndex);
+        PartFetch fetch = new PartFetch(new CompletableFuture<>(), new AtomicInteger());
+        PartFetch existing = inFlightParts.putIfAbsent(key, fetch);
+        if (existing != null) {
+            existing.followers().incrementAndGet();
+            byte[] shared = awaitShared(existing);
+            if (shared != null) {
+                logger.debug("Part {} of file {} shared with client {}", partIndex, fileId, client.getClientId());
+                sendToClient(client, new ChunkData(fileId, partIndex, shared));
+                return;
+            }
+            // Общий запрос не удался или его данные не сохранились - запрашиваем сами
+            fetchWithFailover(client, fileId, partIndex, partLength);
+            return;
+        }
+
+        try {
+            fetch.result().complete(fetchWithFailover(client, fileId, partIndex, partLength));
+        } catch (RuntimeException e) {
+            fetch.result().completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightParts.remove(key, fetch);
+        }
+    }
+
+    /**
+     * Общий запрос части: result завершается данными части (null, если тело было переслано
+     * без сохранения копии), followers - сколько клиентов ждут этих данных
+     */
+    private record PartFetch(CompletableFuture<byte[]> result, AtomicInteger followers) {
+    }
+
+    private byte[] awaitShared(PartFetch fetch) {
+        try {
+            return fetch.result().get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void sendToClient(ClientHandler client, ChunkData chunkData) {
+        try {
+            client.sendChunkData(chunkData);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Получить часть у пиров и передать клиенту.
+     * Если пир не ответил за config.chunkTimeoutMs или отключился, часть запрашивается у другого пира,
+     * всего не больше config.maxPartAttempts попыток
+     * @return данные части или null, если тело было переслано клиенту без сохранения копии
+     */
+    private byte[] fetchWithFailover(ClientHandler client, String fileId, int partIndex, int partLength) {
+        Set<String> failedPeers = ConcurrentHashMap.newKeySet();
+        Exception lastError = null;
+        for (int attempt = 1; attempt <= Math.max(1, config.maxPartAttempts); attempt++) {
+            if (!client.isRunning()) {
+                throw new IllegalStateException("Client " + client.getClientId() + " disconnected");
+            }
+            FilePart partInfo = repository.getFilePartWithPeers(fileId, partIndex);
+            List<String> candidates = candidatePeers(partInfo, failedPeers);
+            if (candidates.isEmpty()) {
+                break;
+            }
             try {
-                // Ожидаем освобождения какого-нибудь пира из списка
-                chosenPeer = waitForFreePeer(peers, 10000);
-                logger.debug("Chosen peer {} for part {} of file {}", chosenPeer, partIndex, clientRequest.fileId());
-
-                // Запрашиваем часть файла у выбранного пира
-                ClientHandler peerHandler = peerService.getPeer(chosenPeer);
-                String requestId = UUID.randomUUID().toString();
-                Map<String, Object> payload = Map.of(
-                        "fileId", clientRequest.fileId(),
-                        "partsNeeded", List.of(partIndex),
-                        "requestId", requestId
-                );
-                Message requestMessage = new Message(MessageType.REQUEST_FILE, payload);
-                CompletableFuture<ChunkData> chunk = peerHandler.sendChunkRequest(requestMessage, requestId);
-
-                // Ожидаем получения части файла с таймаутом
-                ChunkData chunkData = chunk.get(15, TimeUnit.SECONDS);
-
-                // Отправляем полученную часть файла клиенту
-                client.sendChunkData(chunkData);
-            } catch (InterruptedException | IOException | ExecutionException | TimeoutException e) {
-                logger.error("Error transferring part {} to client {}: {}", partIndex, client.getClientId(), e.getMessage(), e);
+                return fetchPart(client, partInfo, partLength, candidates, failedPeers);
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                lastError = e;
+                logger.warn("Attempt {} for part {} of file {} failed: {}", attempt, partIndex, fileId, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new RuntimeException(e);
-            } finally {
-                // Освобождаем пир
-                if (chosenPeer != null) {
-                    peerService.releasePeer(chosenPeer);
+            }
+        }
+        logger.error("Error transferring part {} to client {}: no attempts left", partIndex, client.getClientId());
+        throw new RuntimeException("Part " + partIndex + " of file " + fileId + " is unavailable", lastError);
+    }
+
+    /**
+     * Подключенные пиры, у которых есть часть. Пиры, уже подводившие на этой части, идут
+     * в ход только если других не осталось
+     */
+    private List<String> candidatePeers(FilePart partInfo, Set<String> failedPeers) {
+        List<String> connected = new ArrayList<>();
+        for (String id : partInfo.peers()) {
+            if (peerService.getPeer(id) != null) {
+                connected.add(id);
+            }
+        }
+        List<String> fresh = new ArrayList<>(connected);
+        fresh.removeAll(failedPeers);
+        return fresh.isEmpty() ? connected : fresh;
+    }
+
+    /**
+     * Одна попытка получить часть. Если включено дублирование и пир не ответил за p95 своих
+     * прошлых ответов, тот же запрос отправляется второму пиру: тело принимается от первого
+     * начавшего отвечать, ответ второго вычитывается впустую
+     */
+    private byte[] fetchPart(ClientHandler client, FilePart partInfo, int partLength, List<String> candidates,
+                             Set<String> failedPeers)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        String fileId = partInfo.fileId();
+        int partIndex = partInfo.partIndex();
+        // В потоковом режиме пир отдаёт чанк прямо в сокет клиента
+        ClientHandler relayTarget = config.relayMode == ServerConfig.RelayMode.STREAM ? client : null;
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        AtomicInteger outstanding = new AtomicInteger();
+        CompletableFuture<ChunkData> result = new CompletableFuture<>();
+        List<SentRequest> sent = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.chunkTimeoutMs);
+        try {
+            // Занимаем слот отдачи у одного из пиров (или ждём в очереди его освобождения).
+            // Если все кандидаты заняты, попытка считается неудачной, и fetchWithFailover пробует снова
+            String primary;
+            try {
+                primary = peerService.acquirePeer(candidates, config.peerWaitTimeoutMs);
+            } catch (TimeoutException e) {
+                throw new TimeoutException("No free peer for part " + partIndex + " of file " + fileId
+                        + " within " + config.peerWaitTimeoutMs + " ms");
+            }
+            logger.debug("Chosen peer {} for part {} of file {}", primary, partIndex, fileId);
+            sent.add(new SentRequest(primary, UUID.randomUUID().toString()));
+            sendRequest(sent.getLast(), fileId, partIndex, partLength, relayTarget, claimed, outstanding, result,
+                    failedPeers);
+
+            if (config.hedgeEnabled && candidates.size() > 1) {
+                long delay = hedgeDelayMs(primary);
+                List<String> others = new ArrayList<>(candidates);
+                others.remove(primary);
+                // Дублирующий запрос не ждёт в очереди слотов: если все заняты, пробуем снова через delay
+                while (!claimed.get() && deadline - System.nanoTime() > 0) {
+                    try {
+                        result.get(delay, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        String hedge = claimed.get() ? null : peerService.tryAcquirePeer(others);
+                        if (hedge != null) {
+                            logger.debug("Hedging part {} of file {} to peer {}", partIndex, fileId, hedge);
+                            sent.add(new SentRequest(hedge, UUID.randomUUID().toString()));
+                            sendRequest(sent.getLast(), fileId, partIndex, partLength, relayTarget, claimed,
+                                    outstanding, result, failedPeers);
+                            break;
+                        }
+                    }
                 }
             }
+
+            ChunkData chunkData;
+            try {
+                // Собственного срока здесь нет: неотвеченные запросы снимает requestDeadlines,
+                // застрявшее посреди передачи тело прерывает scheduleBodyDeadline, а проигравшие
+                // дублирующие ответы отменяются в receiveChunk. Поэтому result всегда завершается,
+                // и новая попытка не начнётся, пока прежняя пересылка ещё держит соединение клиента
+                chunkData = result.get();
+            } catch (ExecutionException e) {
+                // Таймаут или отключение пира, - причина важнее обёртки
+                if (e.getCause() instanceof TimeoutException timeout) {
+                    throw timeout;
+                }
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw e;
+            }
+
+            // Отправляем полученную часть файла клиенту (если она не была переслана напрямую)
+            if (relayTarget == null) {
+                client.sendChunkData(chunkData);
+            }
+            if (chunkData.data() != null && chunkCache.isHot(fileId, partIndex)) {
+                chunkCache.put(fileId, partIndex, chunkData.data(), partInfo.checksum());
+            }
+            return chunkData.data();
+        } finally {
+            for (SentRequest request : sent) {
+                ClientHandler peer = peerService.getPeer(request.peerId());
+                if (peer != null) {
+                    peer.getPendingRequests().remove(request.requestId());
+                }
+                peerService.releasePeer(request.peerId());
+            }
+        }
+    }
+
+    private record SentRequest(String peerId, String requestId) {
+        @Override
+        public String toString() {
+            return peerId;
         }
     }
 
+    private void sendRequest(SentRequest request, String fileId, int partIndex, int partLength,
+                             ClientHandler relayTarget, AtomicBoolean claimed, AtomicInteger outstanding,
+                             CompletableFuture<ChunkData> result, Set<String> failedPeers) throws IOException {
+        ClientHandler peer = peerService.getPeer(request.peerId());
+        if (peer == null) {
+            failedPeers.add(request.peerId());
+            throw new IOException("Peer " + request.peerId() + " disconnected");
+        }
+        outstanding.incrementAndGet();
+        CompletableFuture<ChunkData> chunk;
+        try {
+            chunk = peer.sendChunkRequest(fileId, partIndex, partLength, request.requestId(), relayTarget, claimed);
+        } catch (IOException e) {
+            outstanding.decrementAndGet();
+            failedPeers.add(request.peerId());
+            throw e;
+        }
+        TimerWheel.Timeout deadline = requestDeadlines.schedule(config.chunkTimeoutMs,
+                () -> peer.expireRequest(request.requestId(), config.chunkTimeoutMs));
+        chunk.whenComplete((data, error) -> {
+            deadline.cancel();
+            if (error == null) {
+                result.complete(data);
+                return;
+            }
+            // Отменён ответ, проигравший другому пиру, - это не сбой пира
+            if (!(error instanceof CancellationException)) {
+                failedPeers.add(request.peerId());
+            }
+            if (error instanceof TimeoutException) {
+                peerService.recordTimeout(request.peerId(), config.chunkTimeoutMs);
+            }
+            // Попытка неудачна, только если не осталось ни одного ожидаемого ответа
+            if (outstanding.decrementAndGet() == 0) {
+                // Последним мог остаться отменённый дубликат, когда принятый ответ уже сорвался
+                result.completeExceptionally(error instanceof CancellationException
+                        ? new IOException("Accepted response for part " + partIndex + " of file " + fileId + " failed")
+                        : error);
+            }
+        });
+    }
+
+    private long hedgeDelayMs(String peerId) {
+        PeerStats stats = peerService.getStats(peerId);
+        double p95 = stats != null ? stats.getDurationPercentileMs(0.95) : -1;
+        long delay = p95 >= 0 ? (long) Math.ceil(p95) : config.hedgeDelayMs;
+        return Math.max(1, Math.min(delay, config.chunkTimeoutMs));
+    }
+
     /**
-     * Ожидание освобождения какого-нибудь пира из списка
-     * Если пир не освободится за timeoutMs миллисекунд, ожидание прерывается с ошибкой
+     * Обработать чанк, пришедший от пира в ответ на запрос.
+     * Вызывается из потока чтения пира, тело чанка ещё не прочитано из его потока
      */
-    private String waitForFreePeer(List<String> peers, long timeoutMs) throws InterruptedException {
-        long deadline = System.currentTimeMillis() + timeoutMs;
-        String chosen = null;
-        while (chosen == null && System.currentTimeMillis() < deadline) {
-            chosen = peerService.chooseFreePeer(peers);
-            if (chosen == null) {
-                Thread.sleep(10);
+    public void receiveChunk(ClientHandler peer, ChunkHeader header) throws IOException {
+        // Длина приходит от пира: с неверной длиной тело не вычитать, поток пира дальше не разобрать
+        if (header.length() < 0 || header.length() > ProtocolUtil.PART_SIZE) {
+            throw new IOException("Invalid chunk length " + header.length() + " from " + peer.getClientId());
+        }
+        PendingChunk pending = peer.getPendingRequests().remove(header.requestId());
+        if (pending == null || !pending.claimed().compareAndSet(false, true)) {
+            // Запрос отменён по таймауту или часть уже пришла от другого пира:
+            // тело всё равно нужно вычитать из потока
+            if (pending != null) {
+                pending.future().cancel(false);
+            }
+            logger.debug("Dropping chunk from {}: fileId={}, partIndex={}", peer.getClientId(), header.fileId(), header.partIndex());
+            ProtocolUtil.skipChunkData(peer.getIn(), header.length());
+            return;
+        }
+
+        if (header.length() != pending.expectedLength()) {
+            IOException invalid = new IOException("Chunk length " + header.length() + " from " + peer.getClientId()
+                    + " does not match part length " + pending.expectedLength());
+            pending.future().completeExceptionally(invalid);
+            throw invalid;
+        }
+
+        long latencyNanos = System.nanoTime() - pending.sentNanos();
+        ClientHandler target = pending.relayTarget();
+        AtomicBoolean bodyDone = new AtomicBoolean(false);
+        TimerWheel.Timeout bodyDeadline = scheduleBodyDeadline(peer, target, header, bodyDone);
+        byte[] buffer = null;
+        try {
+            if (target == null) {
+                byte[] data = ProtocolUtil.readChunkData(peer.getIn(), header.length());
+                if (data == null) {
+                    throw new EOFException("EOF while reading chunk body from " + peer.getClientId());
+                }
+                recordTransfer(peer, pending, latencyNanos, header.length());
+                pending.future().complete(new ChunkData(header.fileId(), header.partIndex(), data));
+                return;
+            }
+
+            buffer = relayBuffers.acquire();
+            // Копия тела снимается по ходу пересылки, только если её кто-то ждёт
+            // или часть уже запрашивалась недавно и попадёт в кэш; обычная часть пересылается без копии
+            PartFetch fetch = inFlightParts.get(new PartKey(header.fileId(), header.partIndex()));
+            boolean shared = fetch != null && fetch.followers().get() > 0;
+            boolean hot = chunkCache.accepts(header.length()) && chunkCache.isHot(header.fileId(), header.partIndex());
+            byte[] capture = shared || hot ? new byte[header.length()] : null;
+            if (target.relayChunk(header, peer.getIn(), buffer, capture)) {
+                recordTransfer(peer, pending, latencyNanos, header.length());
+                pending.future().complete(new ChunkData(header.fileId(), header.partIndex(), capture));
+            } else {
+                pending.future().completeExceptionally(
+                        new IOException("Failed to relay chunk to client " + target.getClientId()));
             }
+        } catch (IOException e) {
+            pending.future().completeExceptionally(e);
+            throw e;
+        } finally {
+            bodyDone.set(true);
+            bodyDeadline.cancel();
+            relayBuffers.release(buffer);
         }
-        if (chosen == null) {
-            logger.error("No free peers available within timeout for peers: {}", peers);
-            throw new InterruptedException("No free peers available within timeout");
+    }
+
+    /**
+     * Срок приёма тела чанка. Пир, застрявший посреди тела, держит поток чтения своего соединения,
+     * а при пересылке - ещё и блокировку записи клиента, поэтому тело должно прийти за chunkTimeoutMs.
+     * Иначе закрывается соединение клиента (чанк до него целиком уже не дойдёт, а запись в него
+     * могла заблокироваться), и, если тело так и не вычитано ещё за chunkTimeoutMs, - соединение пира
+     */
+    private TimerWheel.Timeout scheduleBodyDeadline(ClientHandler peer, ClientHandler target, ChunkHeader header,
+                                                    AtomicBoolean done) {
+        return requestDeadlines.schedule(config.chunkTimeoutMs, () -> {
+            if (done.get()) {
+                return;
+            }
+            if (target == null) {
+                closeStalled(peer, header, done);
+                return;
+            }
+            logger.warn("Relay of part {} of file {} from {} to {} stalled, closing client connection",
+                    header.partIndex(), header.fileId(), peer.getClientId(), target.getClientId());
+            transferExecutor.execute(target::close);
+            requestDeadlines.schedule(config.chunkTimeoutMs, () -> closeStalled(peer, header, done));
+        });
+    }
+
+    private void closeStalled(ClientHandler peer, ChunkHeader header, AtomicBoolean done) {
+        if (done.get()) {
+            return;
         }
-        return chosen;
+        logger.warn("Chunk body for part {} of file {} from {} stalled, closing peer connection",
+                header.partIndex(), header.fileId(), peer.getClientId());
+        transferExecutor.execute(peer::close);
     }
 
+    private void recordTransfer(ClientHandler peer, PendingChunk pending, long latencyNanos, int bytes) {
+        peerService.recordTransfer(peer.getClientId(), latencyNanos, System.nanoTime() - pending.sentNanos(), bytes);
+    }
 }
@@ -0,0 +1,7 @@
+package org.torrents.server.service;
+
+/**
+ * Ключ части файла в кэше и таблице выполняющихся запросов
+ */
+record PartKey(String fileId, int partIndex) {
+}
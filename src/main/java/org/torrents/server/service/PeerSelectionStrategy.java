@@ -0,0 +1,88 @@
+package org.torrents.server.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Стратегия выбора пира среди кандидатов со свободным слотом отдачи
+ */
+public enum PeerSelectionStrategy {
+    /** Первый свободный в порядке списка кандидатов */
+    FIRST_FREE {
+        @Override
+        public String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+            return free.get(0);
+        }
+    },
+    /** Пир с наименьшим числом текущих отдач */
+    LEAST_LOADED {
+        @Override
+        public String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+            String best = free.get(0);
+            for (String id : free) {
+                if (activeUploads.getOrDefault(id, 0) < activeUploads.getOrDefault(best, 0)) {
+                    best = id;
+                }
+            }
+            return best;
+        }
+    },
+    /** Пир с наибольшей измеренной скоростью; ещё не измеренные пиры пробуются в первую очередь */
+    FASTEST {
+        @Override
+        public String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+            String best = null;
+            double bestSpeed = -1;
+            for (String id : free) {
+                PeerStats peerStats = stats.get(id);
+                double speed = peerStats != null && peerStats.getBytesPerSecond() >= 0
+                        ? peerStats.getBytesPerSecond()
+                        : Double.MAX_VALUE;
+                if (speed > bestSpeed) {
+                    best = id;
+                    bestSpeed = speed;
+                }
+            }
+            return best;
+        }
+    },
+    /** Из двух случайных пиров - тот, у кого меньше ожидаемое время ответа с учётом загрузки */
+    POWER_OF_TWO {
+        @Override
+        public String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+            if (free.size() == 1) {
+                return free.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(free.size());
+            int second = random.nextInt(free.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            String a = free.get(first);
+            String b = free.get(second);
+            return expectedCost(b, activeUploads, stats) < expectedCost(a, activeUploads, stats) ? b : a;
+        }
+    },
+    /** Случайный свободный пир */
+    RANDOM {
+        @Override
+        public String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+            return free.get(ThreadLocalRandom.current().nextInt(free.size()));
+        }
+    };
+
+    /**
+     * @param free          непустой список пиров со свободным слотом
+     * @param activeUploads число текущих отдач у пиров
+     * @param stats         измеренные показатели пиров
+     */
+    public abstract String select(List<String> free, Map<String, Integer> activeUploads, Map<String, PeerStats> stats);
+
+    private static double expectedCost(String id, Map<String, Integer> activeUploads, Map<String, PeerStats> stats) {
+        PeerStats peerStats = stats.get(id);
+        double latency = peerStats != null ? Math.max(0, peerStats.getLatencyMs()) : 0;
+        return (activeUploads.getOrDefault(id, 0) + 1) * (latency + 1);
+    }
+}
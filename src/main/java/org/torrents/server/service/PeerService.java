@@ -6,15 +6,35 @@ import org.torrents.server.ClientHandler;
 import org.torrents.server.ClientListener;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PeerService implements ClientListener {
     private static final Logger logger = LoggerFactory.getLogger(PeerService.class);
     Map<String, ClientHandler> peers;
-    Set<String> busyPeers;
+    // Число занятых слотов отдачи у каждого пира, защищено slotLock
+    private final Map<String, Integer> activeUploads = new HashMap<>();
+    // Запросы, ожидающие свободного слота, в порядке поступления
+    private final Deque<SlotWaiter> waiters = new ArrayDeque<>();
+    private final ReentrantLock slotLock = new ReentrantLock();
+    private final Map<String, PeerStats> stats = new ConcurrentHashMap<>();
+    private final int uploadSlots;
+    private final PeerSelectionStrategy selectionStrategy;
+
+    private record SlotWaiter(List<String> candidates, CompletableFuture<String> future) {
+    }
 
     public PeerService() {
-        busyPeers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        this(1, PeerSelectionStrategy.FIRST_FREE);
+    }
+
+    /**
+     * @param uploadSlots       сколько частей один пир может отдавать одновременно
+     * @param selectionStrategy как выбирать пира среди свободных кандидатов
+     */
+    public PeerService(int uploadSlots, PeerSelectionStrategy selectionStrategy) {
+        this.uploadSlots = Math.max(1, uploadSlots);
+        this.selectionStrategy = selectionStrategy;
         peers = new ConcurrentHashMap<>();
     }
 
@@ -26,22 +46,138 @@ public class PeerService implements ClientListener {
         return peers.get(id);
     }
 
-    public String chooseFreePeer(List<String> candidates) {
+    /**
+     * Занять слот отдачи у одного из подключенных пиров-кандидатов.
+     * Если свободных слотов нет, поток ждёт в общей очереди: при освобождении слота
+     * он достаётся первому по времени ожидания запросу, которому подходит этот пир
+     * @return идентификатор выбранного пира, слот нужно вернуть через releasePeer
+     * @throws TimeoutException если слот не освободился за timeoutMs
+     */
+    public String acquirePeer(List<String> candidates, long timeoutMs) throws InterruptedException, TimeoutException {
+        SlotWaiter waiter;
+        slotLock.lock();
+        try {
+            String chosen = tryAcquire(candidates);
+            if (chosen != null) {
+                return chosen;
+            }
+            waiter = new SlotWaiter(candidates, new CompletableFuture<>());
+            waiters.addLast(waiter);
+        } finally {
+            slotLock.unlock();
+        }
+
+        try {
+            return waiter.future().get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Peer slot wait failed", e.getCause());
+        } catch (TimeoutException | InterruptedException e) {
+            slotLock.lock();
+            try {
+                // Слот мог достаться нам одновременно с таймаутом
+                if (waiter.future().isDone() && !waiter.future().isCompletedExceptionally()) {
+                    return waiter.future().join();
+                }
+                waiters.remove(waiter);
+            } finally {
+                slotLock.unlock();
+            }
+            logger.warn("No free peers available within timeout for peers: {}", candidates);
+            throw e;
+        }
+    }
+
+    /**
+     * Занять слот у одного из кандидатов без ожидания
+     * @return идентификатор пира или null, если свободных слотов нет
+     */
+    public String tryAcquirePeer(List<String> candidates) {
+        slotLock.lock();
+        try {
+            return tryAcquire(candidates);
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    private String tryAcquire(List<String> candidates) {
+        List<String> free = new ArrayList<>(candidates.size());
         for (String id : candidates) {
-            if (busyPeers.add(id)) {
-                return id;
+            if (activeUploads.getOrDefault(id, 0) < uploadSlots && peers.containsKey(id)) {
+                free.add(id);
             }
         }
-        return null;
+        if (free.isEmpty()) {
+            return null;
+        }
+        String chosen = selectionStrategy.select(free, activeUploads, stats);
+        activeUploads.merge(chosen, 1, Integer::sum);
+        return chosen;
+    }
+
+    /**
+     * Учесть чанк, полученный от пира: задержку до начала ответа и длительность передачи
+     */
+    public void recordTransfer(String id, long latencyNanos, long totalNanos, int bytes) {
+        if (!peers.containsKey(id)) {
+            return;
+        }
+        double latencyMs = latencyNanos / 1_000_000.0;
+        double bytesPerSecond = bytes * 1_000_000_000.0 / Math.max(1, totalNanos);
+        stats.computeIfAbsent(id, k -> new PeerStats()).record(latencyMs, bytesPerSecond, totalNanos / 1_000_000.0);
+    }
+
+    /**
+     * Учесть запрос, на который пир не ответил: он считается медленным, чтобы стратегии выбора его обходили
+     */
+    public void recordTimeout(String id, long timeoutMs) {
+        if (!peers.containsKey(id)) {
+            return;
+        }
+        stats.computeIfAbsent(id, k -> new PeerStats()).record(timeoutMs, 0, timeoutMs);
+    }
+
+    public PeerStats getStats(String id) {
+        return stats.get(id);
     }
 
     public void releasePeer(String id) {
-        busyPeers.remove(id);
+        slotLock.lock();
+        try {
+            int active = activeUploads.getOrDefault(id, 0) - 1;
+            if (active > 0) {
+                activeUploads.put(id, active);
+            } else {
+                activeUploads.remove(id);
+            }
+            if (!peers.containsKey(id)) {
+                return;
+            }
+            // Отдаём освободившийся слот первому подходящему ожидающему
+            Iterator<SlotWaiter> it = waiters.iterator();
+            while (it.hasNext()) {
+                SlotWaiter waiter = it.next();
+                if (waiter.candidates().contains(id)) {
+                    it.remove();
+                    activeUploads.merge(id, 1, Integer::sum);
+                    waiter.future().complete(id);
+                    return;
+                }
+            }
+        } finally {
+            slotLock.unlock();
+        }
     }
 
     public void onPeerDisconnect(String id) {
-        busyPeers.remove(id);
         peers.remove(id);
+        stats.remove(id);
+        slotLock.lock();
+        try {
+            activeUploads.remove(id);
+        } finally {
+            slotLock.unlock();
+        }
     }
 
     public List<ClientHandler> getAllPeers() {
@@ -63,7 +199,17 @@ public class PeerService implements ClientListener {
         }
 
         peers.clear();
-        busyPeers.clear();
+        stats.clear();
+        slotLock.lock();
+        try {
+            activeUploads.clear();
+            for (SlotWaiter waiter : waiters) {
+                waiter.future().completeExceptionally(new IllegalStateException("Server is shutting down"));
+            }
+            waiters.clear();
+        } finally {
+            slotLock.unlock();
+        }
         logger.info("All peer connections shut down");
     }
 
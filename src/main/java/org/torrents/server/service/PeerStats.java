@@ -0,0 +1,63 @@
+package org.torrents.server.service;
+
+import java.util.Arrays;
+
+/**
+ * Скользящие оценки (EWMA) задержки ответа и скорости отдачи пира,
+ * а также длительности последних ответов для расчёта перцентилей
+ */
+public class PeerStats {
+    private static final double ALPHA = 0.2;
+    private static final int DURATION_SAMPLES = 64;
+    private double latencyMs = -1;
+    private double bytesPerSecond = -1;
+    private final double[] durationsMs = new double[DURATION_SAMPLES];
+    private int durationCount;
+    private int durationNext;
+
+    /**
+     * Учесть очередной полученный от пира чанк
+     * @param latencyMs      время от запроса до начала ответа
+     * @param bytesPerSecond скорость передачи чанка целиком
+     * @param durationMs     время от запроса до конца передачи чанка
+     */
+    public synchronized void record(double latencyMs, double bytesPerSecond, double durationMs) {
+        durationsMs[durationNext] = durationMs;
+        durationNext = (durationNext + 1) % DURATION_SAMPLES;
+        durationCount = Math.min(durationCount + 1, DURATION_SAMPLES);
+
+        this.latencyMs = this.latencyMs < 0 ? latencyMs : ALPHA * latencyMs + (1 - ALPHA) * this.latencyMs;
+        this.bytesPerSecond = this.bytesPerSecond < 0
+                ? bytesPerSecond
+                : ALPHA * bytesPerSecond + (1 - ALPHA) * this.bytesPerSecond;
+    }
+
+    /**
+     * @return задержка в мс или -1, если пир ещё ничего не отдавал
+     */
+    public synchronized double getLatencyMs() {
+        return latencyMs;
+    }
+
+    /**
+     * @return скорость в байтах в секунду или -1, если пир ещё ничего не отдавал
+     */
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Перцентиль длительности последних ответов пира
+     * @param percentile доля от 0 до 1, например 0.95
+     * @return длительность в мс или -1, если пир ещё ничего не отдавал
+     */
+    public synchronized double getDurationPercentileMs(double percentile) {
+        if (durationCount == 0) {
+            return -1;
+        }
+        double[] sorted = Arrays.copyOf(durationsMs, durationCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * durationCount) - 1;
+        return sorted[Math.max(0, Math.min(index, durationCount - 1))];
+    }
+}
@@ -0,0 +1,20 @@
+package org.torrents.server.service;
+
+import org.torrents.server.ClientHandler;
+import org.torrents.shared.schemas.ChunkData;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ожидаемый ответ пира на запрос части файла.
+ * Если relayTarget задан, тело чанка пересылается ему напрямую, а future завершается
+ * ChunkData с копией тела для кэша или без данных (data == null), если кэш её не примет.
+ * expectedLength - длина части; ответ с другой длиной считается нарушением протокола.
+ * sentNanos - момент отправки запроса (System.nanoTime), по нему измеряется скорость пира.
+ * claimed общий для всех запросов одной части (основного и дублирующих): тело принимается
+ * только от того ответа, который первым его установил, остальные вычитываются впустую
+ */
+public record PendingChunk(CompletableFuture<ChunkData> future, ClientHandler relayTarget, int expectedLength,
+                           long sentNanos, AtomicBoolean claimed) {
+}
@@ -0,0 +1,126 @@
+package org.torrents.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Хешированное колесо таймеров для сроков ожидания запросов.
+ * Один поток раз в tick проверяет одну ячейку колеса, поэтому тысячи сроков не требуют
+ * ни отдельных потоков, ни блокирующего ожидания. Точность срабатывания - один tick
+ */
+public class TimerWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    // Новые сроки раскладываются по ячейкам только потоком колеса
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Запланированный срок; отменённый срок удаляется, когда колесо дойдёт до его ячейки
+     */
+    public static final class Timeout {
+        private final long deadlineNanos;
+        private final Runnable task;
+        private volatile boolean cancelled;
+        private long rounds;
+
+        private Timeout(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @param tickMs    шаг колеса, мс
+     * @param wheelSize число ячеек, округляется вверх до степени двойки
+     */
+    public TimerWheel(String name, long tickMs, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        // Массив с параметризованным типом элементов создать нельзя; в ячейки кладутся только ArrayDeque<Timeout>
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Timeout>[] buckets = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+        this.wheel = buckets;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.worker = Thread.ofPlatform().name(name).daemon(true).start(this::run);
+    }
+
+    /**
+     * Выполнить task в потоке колеса через delayMs. Задача должна быть короткой и не блокирующей
+     */
+    public Timeout schedule(long delayMs, Runnable task) {
+        Timeout timeout = new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (running) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long sleep = tickEnd - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Номер тика, к концу которого срок уже наступит; просроченные попадают в текущую ячейку
+            long due = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    logger.error("Timer task failed: {}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -10,5 +10,7 @@ public enum MessageType {
     SEND_CHUNK,
     COMPLETE,
     ERROR,
-    ADD_FILE
+    ADD_FILE,
+    FILE_LIST_UPDATE,
+    FILE_LIST_REQUEST
 }
@@ -0,0 +1,45 @@
+package org.torrents.shared;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Блокировка записи в соединение, при которой управляющие сообщения обгоняют данные.
+ * Писатель чанка, получив блокировку, уступает её, пока ждут управляющие кадры, поэтому
+ * FILE_LIST или REQUEST_FILE не стоят в очереди за несколькими чанками подряд.
+ * Очерёдность меняется только на границе кадров: начатый кадр дописывается целиком.
+ * Основана на ReentrantLock, поэтому не закрепляет виртуальный поток за носителем
+ */
+public class PriorityWriteLock {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition controlDone = lock.newCondition();
+    private final AtomicInteger waitingControl = new AtomicInteger();
+
+    /**
+     * Захватить блокировку для управляющего сообщения
+     */
+    public void lockControl() {
+        waitingControl.incrementAndGet();
+        try {
+            lock.lock();
+        } finally {
+            waitingControl.decrementAndGet();
+        }
+    }
+
+    /**
+     * Захватить блокировку для кадра с данными: сначала пропускаются ожидающие управляющие сообщения
+     */
+    public void lockData() {
+        lock.lock();
+        while (waitingControl.get() > 0) {
+            controlDone.awaitUninterruptibly();
+        }
+    }
+
+    public void unlock() {
+        controlDone.signalAll();
+        lock.unlock();
+    }
+}
@@ -1,14 +1,49 @@
 package org.torrents.shared;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.torrents.shared.schemas.ChunkHeader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 /**
  * Общий класс для обработки сообщений между клиентом и сервером
  */
 public class ProtocolUtil {
 
+    /**
+     * Маркер бинарного кадра вместо длины JSON.
+     * Длина JSON сообщения всегда положительна, поэтому кадры не пересекаются
+     */
+    public static final int BINARY_FRAME_MARKER = -1;
+    /**
+     * Ключ в payload REGISTER/FILE_LIST, которым стороны сообщают о поддержке бинарных кадров
+     */
+    public static final String BINARY_FRAMES_KEY = "binaryFrames";
+    /**
+     * Ключ в payload FILE_LIST/FILE_LIST_UPDATE с версией каталога файлов на сервере
+     */
+    public static final String CATALOG_VERSION_KEY = "version";
+    /**
+     * Ключ в payload FILE_LIST_UPDATE с версией каталога, к которой применяется изменение
+     */
+    public static final String CATALOG_BASE_VERSION_KEY = "baseVersion";
+
+    /**
+     * Максимальная длина JSON сообщения
+     */
+    public static final int MAX_MESSAGE_LENGTH = 1_000_000;
+
+    /**
+     * Размер части файла; тело SEND_CHUNK не бывает длиннее
+     */
+    public static final int PART_SIZE = 256 * 1024;
+
+    private static final byte FRAME_SEND_CHUNK = 1;
+    private static final byte FRAME_REQUEST_FILE = 2;
+
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     private static byte[] serializeMessage(Message message) throws IOException {
@@ -21,6 +56,15 @@ public class ProtocolUtil {
         return objectMapper.readValue(json, Message.class);
     }
 
+    /**
+     * Закодировать сообщение в готовый кадр (длина + JSON), чтобы отправлять его многим получателям
+     * без повторной сериализации
+     */
+    public static byte[] encodeMessage(Message message) throws IOException {
+        byte[] jsonBytes = serializeMessage(message);
+        return ByteBuffer.allocate(4 + jsonBytes.length).putInt(jsonBytes.length).put(jsonBytes).array();
+    }
+
     public static void sendMessage(OutputStream out, Message message) throws IOException {
         byte[] jsonBytes = serializeMessage(message);
         DataOutputStream dos = new DataOutputStream(out);
@@ -32,30 +76,152 @@ public class ProtocolUtil {
     public static Message receiveMessage(InputStream in) throws IOException {
         DataInputStream dis = new DataInputStream(in);
         try {
-            int length = dis.readInt();
-            if (length <= 0 || length > 1_000_000)
-                throw new IOException("Invalid message length " + length);
-
-            byte[] jsonBytes = new byte[length];
-            dis.readFully(jsonBytes);
-            return deserializeMessage(jsonBytes);
+            return readFrame(dis);
         } catch (EOFException e) {
             // Клиент отключился
             return null;
         }
     }
 
+    private static Message readFrame(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length == BINARY_FRAME_MARKER)
+            return readBinaryFrame(dis);
+        if (length <= 0 || length > MAX_MESSAGE_LENGTH)
+            throw new IOException("Invalid message length " + length);
+
+        byte[] jsonBytes = new byte[length];
+        dis.readFully(jsonBytes);
+        return deserializeMessage(jsonBytes);
+    }
+
+    /**
+     * Разобрать заголовок кадра из буфера неблокирующего соединения (буфер в режиме чтения).
+     * Тело SEND_CHUNK не читается - оно идёт в буфере следом за заголовком
+     * @return сообщение или null, если заголовок получен не полностью (позиция буфера не меняется)
+     */
+    public static Message decodeFrame(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4) return null;
+        int start = buf.position();
+        int length = buf.getInt(start);
+        int frameLength;
+        if (length == BINARY_FRAME_MARKER) {
+            frameLength = binaryHeaderLength(buf, start);
+            if (frameLength < 0) return null;
+        } else {
+            if (length <= 0 || length > MAX_MESSAGE_LENGTH)
+                throw new IOException("Invalid message length " + length);
+            frameLength = 4 + length;
+        }
+        if (buf.remaining() < frameLength) return null;
+
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(buf.array(), buf.arrayOffset() + start, frameLength));
+        Message message = readFrame(dis);
+        buf.position(start + frameLength);
+        return message;
+    }
+
+    /**
+     * Длина бинарного заголовка, начинающегося в позиции start, или -1, если её пока нельзя определить
+     */
+    private static int binaryHeaderLength(ByteBuffer buf, int start) {
+        int end = buf.limit();
+        // маркер + тип + длина fileId
+        int fileIdLengthAt = start + 5;
+        if (end < fileIdLengthAt + 2) return -1;
+        int fileIdLength = Short.toUnsignedInt(buf.getShort(fileIdLengthAt));
+        // fileId + partIndex + length
+        int requestIdLengthAt = fileIdLengthAt + 2 + fileIdLength + 8;
+        if (end < requestIdLengthAt + 2) return -1;
+        int requestIdLength = Short.toUnsignedInt(buf.getShort(requestIdLengthAt));
+        return requestIdLengthAt + 2 + requestIdLength - start;
+    }
+
     /**
      * Отправить сообщение с данными чанка
      */
     public static void sendChunkData(OutputStream out, Message message, byte[] data) throws IOException {
-        String json = objectMapper.writeValueAsString(message);
-        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        writeChunkHeader(out, message);
+        out.write(data);
+        out.flush();
+    }
+
+    /**
+     * Записать JSON заголовок чанка без тела и без flush
+     */
+    public static void writeChunkHeader(OutputStream out, Message message) throws IOException {
+        byte[] jsonBytes = serializeMessage(message);
         DataOutputStream dos = new DataOutputStream(out);
         dos.writeInt(jsonBytes.length);
         dos.write(jsonBytes);
-        dos.write(data);
-        dos.flush();
+    }
+
+    /**
+     * Отправить чанк в бинарном кадре (без JSON заголовка)
+     */
+    public static void sendBinaryChunk(OutputStream out, ChunkHeader header, byte[] data) throws IOException {
+        writeBinaryChunkHeader(out, header);
+        out.write(data);
+        out.flush();
+    }
+
+    /**
+     * Записать бинарный заголовок чанка без тела и без flush
+     */
+    public static void writeBinaryChunkHeader(OutputStream out, ChunkHeader header) throws IOException {
+        out.write(encodeBinaryHeader(FRAME_SEND_CHUNK, header.fileId(), header.partIndex(), header.length(), header.requestId()));
+    }
+
+    /**
+     * Отправить запрос одной части файла в бинарном кадре
+     */
+    public static void sendBinaryFileRequest(OutputStream out, String fileId, int partIndex, String requestId) throws IOException {
+        out.write(encodeBinaryHeader(FRAME_REQUEST_FILE, fileId, partIndex, 0, requestId));
+        out.flush();
+    }
+
+    /**
+     * Заголовок бинарного кадра:
+     * [4 байта маркер][1 байт тип][fileId UTF][4 байта partIndex][4 байта length][requestId UTF]
+     */
+    private static byte[] encodeBinaryHeader(byte frameType, String fileId, int partIndex, int length,
+                                             String requestId) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(96);
+        DataOutputStream dos = new DataOutputStream(buffer);
+        dos.writeInt(BINARY_FRAME_MARKER);
+        dos.writeByte(frameType);
+        dos.writeUTF(fileId);
+        dos.writeInt(partIndex);
+        dos.writeInt(length);
+        dos.writeUTF(requestId != null ? requestId : "");
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Прочитать бинарный кадр (маркер уже прочитан) и представить его как обычное сообщение,
+     * чтобы обработчики не зависели от формата кадра
+     */
+    private static Message readBinaryFrame(DataInputStream dis) throws IOException {
+        byte frameType = dis.readByte();
+        String fileId = dis.readUTF();
+        int partIndex = dis.readInt();
+        int length = dis.readInt();
+        String requestId = dis.readUTF();
+        return switch (frameType) {
+            case FRAME_SEND_CHUNK -> new Message(MessageType.SEND_CHUNK, Map.of(
+                    "fileId", fileId,
+                    "partIndex", partIndex,
+                    "length", length,
+                    "requestId", requestId
+            ));
+            case FRAME_REQUEST_FILE -> new Message(MessageType.REQUEST_FILE, Map.of(
+                    "fileId", fileId,
+                    "partsNeeded", List.of(partIndex),
+                    "requestId", requestId
+            ));
+            default -> throw new IOException("Unknown binary frame type " + frameType);
+        };
     }
 
     public static byte[] readChunkData(InputStream in, int length) throws IOException {
@@ -69,4 +235,55 @@ public class ProtocolUtil {
         }
     }
 
+    /**
+     * Переслать тело чанка из in в out через переданный буфер, не создавая массив под весь чанк.
+     * Ошибка записи в out не прерывает чтение: тело вычитывается из in до конца,
+     * чтобы не сбить разбор следующих кадров входящего потока
+     * @return true, если данные полностью записаны в out
+     */
+    public static boolean relayChunkData(InputStream in, OutputStream out, int length, byte[] buffer) throws IOException {
+        return relayChunkData(in, out, length, buffer, null);
+    }
+
+    /**
+     * То же, что relayChunkData, но тело дополнительно копируется в capture (если он задан)
+     */
+    public static boolean relayChunkData(InputStream in, OutputStream out, int length, byte[] buffer,
+                                         byte[] capture) throws IOException {
+        boolean writable = true;
+        int remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of stream, " + remaining + " bytes of chunk left");
+            }
+            if (capture != null) {
+                System.arraycopy(buffer, 0, capture, length - remaining, read);
+            }
+            if (writable) {
+                try {
+                    out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    writable = false;
+                }
+            }
+            remaining -= read;
+        }
+        if (writable) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                writable = false;
+            }
+        }
+        return writable;
+    }
+
+    /**
+     * Пропустить тело чанка, который никому не нужен
+     */
+    public static void skipChunkData(InputStream in, int length) throws IOException {
+        in.skipNBytes(length);
+    }
+
 }
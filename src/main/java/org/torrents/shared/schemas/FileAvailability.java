@@ -0,0 +1,9 @@
+package org.torrents.shared.schemas;
+
+import java.util.List;
+
+/**
+ * Новый список доступных частей файла, который уже есть в каталоге у клиента
+ */
+public record FileAvailability(String fileId, List<Integer> parts) {
+}
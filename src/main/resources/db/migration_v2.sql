@@ -0,0 +1,63 @@
+-- v2: целочисленные суррогатные ключи вместо строк вида fileId_partIndex,
+-- части и доступность хранятся в WITHOUT ROWID таблицах с составными ключами
+
+ALTER TABLE file_peers RENAME TO file_peers_v1;
+ALTER TABLE file_parts RENAME TO file_parts_v1;
+ALTER TABLE peers RENAME TO peers_v1;
+ALTER TABLE files RENAME TO files_v1;
+
+CREATE TABLE files (
+                       id INTEGER PRIMARY KEY,
+                       uid TEXT NOT NULL UNIQUE,
+                       name TEXT NOT NULL,
+                       size INTEGER NOT NULL,
+                       parts_count INTEGER NOT NULL
+);
+
+CREATE TABLE file_parts (
+                            file_id INTEGER NOT NULL,
+                            part_index INTEGER NOT NULL,
+                            checksum TEXT NOT NULL,
+                            PRIMARY KEY (file_id, part_index),
+                            FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE
+) WITHOUT ROWID;
+
+CREATE TABLE peers (
+                       id INTEGER PRIMARY KEY,
+                       uid TEXT NOT NULL UNIQUE
+);
+
+CREATE TABLE file_peers (
+                            file_id INTEGER NOT NULL,
+                            part_index INTEGER NOT NULL,
+                            peer_id INTEGER NOT NULL,
+                            PRIMARY KEY (file_id, part_index, peer_id),
+                            FOREIGN KEY (file_id, part_index) REFERENCES file_parts(file_id, part_index) ON DELETE CASCADE,
+                            FOREIGN KEY (peer_id) REFERENCES peers(id) ON DELETE CASCADE
+) WITHOUT ROWID;
+
+-- Удаление всех частей пира без полного просмотра таблицы
+CREATE INDEX idx_file_peers_peer ON file_peers(peer_id);
+
+INSERT INTO files (uid, name, size, parts_count)
+SELECT id, name, size, parts_count FROM files_v1;
+
+INSERT INTO file_parts (file_id, part_index, checksum)
+SELECT f.id, p.part_index, p.checksum
+FROM file_parts_v1 p
+         JOIN files f ON f.uid = p.file_id;
+
+INSERT INTO peers (uid)
+SELECT id FROM peers_v1;
+
+INSERT OR IGNORE INTO file_peers (file_id, part_index, peer_id)
+SELECT f.id, p.part_index, pe.id
+FROM file_peers_v1 fp
+         JOIN file_parts_v1 p ON p.id = fp.file_part_id
+         JOIN files f ON f.uid = p.file_id
+         JOIN peers pe ON pe.uid = fp.peer_id;
+
+DROP TABLE file_peers_v1;
+DROP TABLE file_parts_v1;
+DROP TABLE peers_v1;
+DROP TABLE files_v1;
@@ -0,0 +1,30 @@
+-- v3: доступность частей хранится диапазонами [start_part, end_part] на пару (файл, пир)
+-- вместо строки на каждую часть
+
+CREATE TABLE peer_ranges (
+                             file_id INTEGER NOT NULL,
+                             peer_id INTEGER NOT NULL,
+                             start_part INTEGER NOT NULL,
+                             end_part INTEGER NOT NULL,
+                             PRIMARY KEY (file_id, peer_id, start_part),
+                             FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE,
+                             FOREIGN KEY (peer_id) REFERENCES peers(id) ON DELETE CASCADE
+) WITHOUT ROWID;
+
+-- "У кого есть часть N" без обращения к основной таблице
+CREATE INDEX idx_peer_ranges_lookup ON peer_ranges(file_id, start_part, end_part, peer_id);
+-- Удаление всех диапазонов пира
+CREATE INDEX idx_peer_ranges_peer ON peer_ranges(peer_id);
+
+-- Соседние части одного пира склеиваются в диапазон: у подряд идущих частей
+-- разность part_index и порядкового номера одинакова
+INSERT INTO peer_ranges (file_id, peer_id, start_part, end_part)
+SELECT file_id, peer_id, MIN(part_index), MAX(part_index)
+FROM (
+         SELECT file_id, peer_id, part_index,
+                part_index - ROW_NUMBER() OVER (PARTITION BY file_id, peer_id ORDER BY part_index) AS grp
+         FROM file_peers
+     )
+GROUP BY file_id, peer_id, grp;
+
+DROP TABLE file_peers;
@@ -0,0 +1,105 @@
+package org.torrents.bench;
+
+import org.torrents.server.Server;
+import org.torrents.server.ServerConfig;
+import org.torrents.server.db.DatabaseManager;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Память и число потоков сервера при множестве простаивающих соединений в каждом режиме SERVER_MODE.
+ * Клиентские сокеты открываются в том же процессе, поэтому RSS в абсолютных числах завышен
+ * одинаково для всех режимов - сравнивать стоит прирост относительно базового значения.
+ * Запуск: IdleConnectionsBenchmark [число соединений] [режим...]
+ */
+public class IdleConnectionsBenchmark {
+    private static final int PORT = 19_400;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        List<ServerConfig.ServerMode> modes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            modes.add(ServerConfig.ServerMode.valueOf(args[i]));
+        }
+        if (modes.isEmpty()) {
+            modes = List.of(ServerConfig.ServerMode.values());
+        }
+
+        Path db = Files.createTempFile("bench-idle", ".db");
+        DatabaseManager.initPool(db.toString(), true);
+        DatabaseManager.runMigrations();
+        int port = PORT;
+        for (ServerConfig.ServerMode mode : modes) {
+            run(mode, connections, port++);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerConfig.ServerMode mode, int connections, int port) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.serverMode = mode;
+        Server server = new Server(port, config);
+        Thread acceptor = Thread.ofPlatform().daemon(true).start(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(500);
+
+        settle();
+        long baseRss = rssKb();
+        int baseThreads = threadCount();
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            sockets.add(new Socket("localhost", port));
+        }
+        settle();
+        long rss = rssKb();
+        int threads = threadCount();
+
+        System.out.printf("%-22s connections=%d  RSS %d -> %d MB (+%d MB)  threads %d -> %d%n",
+                mode, connections, baseRss / 1024, rss / 1024, (rss - baseRss) / 1024, baseThreads, threads);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+        acceptor.join(2000);
+        Thread.sleep(1000);
+    }
+
+    private static void settle() throws InterruptedException {
+        Thread.sleep(2000);
+        System.gc();
+        Thread.sleep(500);
+    }
+
+    private static int threadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * Resident set size процесса (Linux); на других ОС - занятая куча
+     */
+    private static long rssKb() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+}
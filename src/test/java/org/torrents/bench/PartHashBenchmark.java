@@ -0,0 +1,100 @@
+package org.torrents.bench;
+
+import org.torrents.client.DownloadManager;
+import org.torrents.shared.ProtocolUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Скорость вычисления checksum частей при добавлении файла: последовательное хеширование
+ * одним потоком против DownloadManager.addLocalFile (части хешируются параллельно).
+ * Файл заранее прочитан в page cache, поэтому измеряется хеширование, а не диск.
+ * Запуск: PartHashBenchmark [размер, МБ] [повторов]
+ */
+public class PartHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path dir = Files.createTempDirectory("bench-hash");
+        Path file = dir.resolve("data.bin");
+        writeRandomFile(file, (long) sizeMb * 1024 * 1024);
+        long size = Files.size(file);
+
+        // Прогрев: JIT и page cache
+        hashSerial(file);
+
+        long[] serial = new long[repeats];
+        long[] parallel = new long[repeats];
+        // Слушатель вызывается из потоков хеширования
+        AtomicInteger reports = new AtomicInteger();
+        for (int i = 0; i < repeats; i++) {
+            long started = System.nanoTime();
+            hashSerial(file);
+            serial[i] = System.nanoTime() - started;
+
+            // Каждый раз новый каталог: индекс раздачи иначе вернёт уже посчитанные checksum
+            DownloadManager manager = new DownloadManager(dir.resolve("seed-" + i).toString());
+            started = System.nanoTime();
+            manager.addLocalFile(file, (filename, hashedParts, totalParts) -> reports.incrementAndGet());
+            parallel[i] = System.nanoTime() - started;
+        }
+        Arrays.sort(serial);
+        Arrays.sort(parallel);
+        System.out.printf("size=%d MB threads=%d%n", sizeMb, Runtime.getRuntime().availableProcessors());
+        System.out.printf("serial   median=%d ms %.2f GB/s%n", serial[repeats / 2] / 1_000_000, gbPerSecond(size, serial[repeats / 2]));
+        System.out.printf("parallel median=%d ms %.2f GB/s, progress reports per file=%d%n",
+                parallel[repeats / 2] / 1_000_000, gbPerSecond(size, parallel[repeats / 2]), reports.get() / repeats);
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Эталон: части по очереди читаются одним потоком и хешируются одним MessageDigest
+     */
+    private static void hashSerial(Path file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ProtocolUtil.PART_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                while (buffer.hasRemaining() && !eof) {
+                    eof = channel.read(buffer) < 0;
+                }
+                if (buffer.position() > 0) {
+                    digest.update(buffer.flip());
+                    digest.digest();
+                }
+            }
+        }
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                channel.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written)));
+            }
+        }
+    }
+
+    private static double gbPerSecond(long bytes, long nanos) {
+        return bytes / (double) nanos;
+    }
+}
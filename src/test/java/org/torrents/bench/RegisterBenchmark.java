@@ -0,0 +1,62 @@
+package org.torrents.bench;
+
+import org.torrents.server.db.DatabaseManager;
+import org.torrents.server.db.RepositoryImpl;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Время REGISTER одного файла с разным числом частей в SQLite (RepositoryImpl.registerPeer),
+ * каждый раз новый файл и новый пир.
+ * Запуск: RegisterBenchmark [повторов] [частей...]
+ */
+public class RegisterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int repeats = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1_000, 10_000, 50_000};
+
+        Path db = Files.createTempFile("bench-register", ".db");
+        DatabaseManager.initPool(db.toString(), true);
+        DatabaseManager.runMigrations();
+        RepositoryImpl repository = new RepositoryImpl();
+
+        // Прогрев: JIT и первое обращение к БД
+        repository.registerPeer("warmup", List.of(file(1_000)));
+
+        int peer = 0;
+        for (int parts : sizes) {
+            long[] times = new long[repeats];
+            for (int i = 0; i < repeats; i++) {
+                FileInfo file = file(parts);
+                long started = System.nanoTime();
+                repository.registerPeer("peer-" + peer++, List.of(file));
+                times[i] = (System.nanoTime() - started) / 1_000_000;
+            }
+            Arrays.sort(times);
+            System.out.printf("parts=%-7d register min=%d ms median=%d ms%n", parts, times[0], times[repeats / 2]);
+        }
+        DatabaseManager.closePool();
+        Files.deleteIfExists(db);
+    }
+
+    private static FileInfo file(int parts) {
+        Map<Integer, String> checksums = new HashMap<>();
+        List<Integer> indices = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            checksums.put(i, UUID.randomUUID().toString().replace("-", "") + "0".repeat(32));
+            indices.add(i);
+        }
+        return new FileInfo(UUID.randomUUID().toString(), parts * 262_144L, parts, indices, checksums, "bench-" + parts);
+    }
+}
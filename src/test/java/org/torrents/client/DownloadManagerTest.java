@@ -0,0 +1,160 @@
+package org.torrents.client;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.torrents.shared.schemas.ChunkData;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadManagerTest {
+    // 3 полных части и неполная последняя
+    private static final int FILE_SIZE = 3 * 256 * 1024 + 1000;
+
+    @TempDir
+    Path tempDir;
+
+    private DownloadManager seeder;
+    private FileInfo fileInfo;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Path source = Files.createDirectories(tempDir.resolve("src")).resolve("data.bin");
+        Files.write(source, content);
+        seeder = new DownloadManager(tempDir.resolve("seed").toString());
+        fileInfo = seeder.addLocalFile(source);
+    }
+
+    @Test
+    void downloadResumesFromSavedBitfield() throws Exception {
+        String leechDir = tempDir.resolve("leech").toString();
+        DownloadManager first = new DownloadManager(leechDir);
+        RecordingListener firstEvents = new RecordingListener();
+        first.setProgressListener(firstEvents);
+        first.startDownload(fileInfo);
+
+        first.saveChunk(chunk(0));
+        assertEquals("progress 1", firstEvents.next());
+        // Состояние сохраняется не чаще раза в секунду - следующая часть запишет маску обеих
+        Thread.sleep(1100);
+        first.saveChunk(chunk(3));
+        assertEquals("progress 2", firstEvents.next());
+
+        DownloadManager resumed = new DownloadManager(leechDir);
+        assertEquals(List.of(fileInfo), resumed.getActiveDownloads());
+        assertEquals(List.of(1, 2), resumed.getNeededParts(fileInfo.fileId()));
+
+        RecordingListener events = new RecordingListener();
+        resumed.setProgressListener(events);
+        resumed.saveChunk(chunk(1));
+        resumed.saveChunk(chunk(2));
+        assertEquals("progress 3", events.next());
+        assertEquals("progress 4", events.next());
+        assertEquals("complete", events.next());
+
+        assertArrayEquals(content, Files.readAllBytes(Path.of(leechDir, "data.bin")));
+        assertTrue(resumed.hasFile(fileInfo.fileId()));
+        try (var files = Files.list(Path.of(leechDir))) {
+            assertTrue(files.noneMatch(p -> p.toString().endsWith(".part") || p.toString().endsWith(".state")));
+        }
+        // Новый менеджер на том же каталоге раздаёт файл, а не продолжает загрузку
+        DownloadManager restarted = new DownloadManager(leechDir);
+        assertTrue(restarted.getActiveDownloads().isEmpty());
+        assertTrue(restarted.hasFile(fileInfo.fileId()));
+    }
+
+    @Test
+    void corruptedAndDuplicateChunksDoNotFailDownload() throws Exception {
+        DownloadManager leecher = new DownloadManager(tempDir.resolve("leech").toString());
+        RecordingListener events = new RecordingListener();
+        leecher.setProgressListener(events);
+        leecher.startDownload(fileInfo);
+
+        byte[] corrupted = chunk(0).data().clone();
+        corrupted[0] ^= 1;
+        leecher.saveChunk(new ChunkData(fileInfo.fileId(), 0, corrupted));
+        assertTrue(events.next().startsWith("retry 0"));
+        assertEquals(List.of(0, 1, 2, 3), leecher.getNeededParts(fileInfo.fileId()));
+
+        for (int i = 0; i < fileInfo.partsCount(); i++) {
+            leecher.saveChunk(chunk(i));
+            assertEquals("progress " + (i + 1), events.next());
+        }
+        assertEquals("complete", events.next());
+        // Дубликат после завершения не превращает загрузку в ошибку
+        leecher.saveChunk(chunk(2));
+        assertNull(events.poll());
+    }
+
+    @Test
+    void existingFileWithSameNameIsKept() throws Exception {
+        Path leechDir = tempDir.resolve("leech");
+        Files.createDirectories(leechDir);
+        byte[] userData = "user data".getBytes();
+        Files.write(leechDir.resolve("data.bin"), userData);
+
+        DownloadManager leecher = new DownloadManager(leechDir.toString());
+        RecordingListener events = new RecordingListener();
+        leecher.setProgressListener(events);
+        leecher.startDownload(fileInfo);
+        for (int i = 0; i < fileInfo.partsCount(); i++) {
+            leecher.saveChunk(chunk(i));
+        }
+        for (int i = 0; i < fileInfo.partsCount(); i++) {
+            events.next();
+        }
+        assertEquals("complete", events.next());
+
+        assertArrayEquals(userData, Files.readAllBytes(leechDir.resolve("data.bin")));
+        assertArrayEquals(content, Files.readAllBytes(leechDir.resolve("data (1).bin")));
+    }
+
+    private ChunkData chunk(int partIndex) throws IOException {
+        return new ChunkData(fileInfo.fileId(), partIndex, seeder.getLocalChunk(fileInfo.fileId(), partIndex));
+    }
+
+    /**
+     * Слушатель складывает события в очередь: части проверяются асинхронно
+     */
+    private static class RecordingListener implements DownloadProgressListener {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onProgressUpdate(String fileId, String filename, int downloadedParts, int totalParts) {
+            events.add("progress " + downloadedParts);
+        }
+
+        @Override
+        public void onDownloadComplete(String fileId, String filename) {
+            events.add("complete");
+        }
+
+        @Override
+        public void onDownloadError(String fileId, String filename, Integer partIndex, String error) {
+            events.add((partIndex != null ? "retry " + partIndex : "error") + ": " + error);
+        }
+
+        String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event, "no download event within 5 s");
+            return event;
+        }
+
+        String poll() throws InterruptedException {
+            return events.poll(300, TimeUnit.MILLISECONDS);
+        }
+    }
+}
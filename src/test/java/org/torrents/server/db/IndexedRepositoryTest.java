@@ -0,0 +1,87 @@
+package org.torrents.server.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.torrents.server.db.RepositoryImplTest.file;
+import static org.torrents.server.db.RepositoryImplTest.withParts;
+
+class IndexedRepositoryTest {
+    @TempDir
+    Path dir;
+    private RepositoryImpl database;
+    private IndexedRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        DatabaseManager.initPool(dir.resolve("test.db").toString(), true);
+        DatabaseManager.runMigrations();
+        database = new RepositoryImpl();
+        repository = new IndexedRepository(database);
+    }
+
+    @AfterEach
+    void tearDown() {
+        repository.close();
+        DatabaseManager.closePool();
+    }
+
+    @Test
+    void indexMergesPartsOfAllPeers() {
+        FileInfo file = file("f1", 8);
+        repository.registerPeer("a", List.of(withParts(file, List.of(0, 1, 2))));
+        repository.registerPeer("b", List.of(withParts(file, List.of(2, 5))));
+        repository.addFileForPeer("a", withParts(file, List.of(6)));
+
+        assertEquals(List.of(0, 1, 2, 5, 6), repository.getAvailableFile("f1").parts());
+        assertEquals(List.of(0, 1, 2, 5, 6), repository.getFiles().getFirst().parts());
+        assertEquals(List.of("a", "b"), repository.getFilePartWithPeers("f1", 2).peers());
+        assertEquals(List.of("a"), repository.getFilePartWithPeers("f1", 6).peers());
+        assertTrue(repository.getFilePartWithPeers("f1", 7).peers().isEmpty());
+        assertEquals("c5", repository.getFilePartWithPeers("f1", 5).checksum());
+        // getFile, как и в БД, возвращает все части файла
+        assertEquals(8, repository.getFile("f1").parts().size());
+    }
+
+    @Test
+    void outOfRangePartsAreIgnored() {
+        repository.registerPeer("a", List.of(withParts(file("f1", 3), List.of(-1, 1, 3, 100))));
+
+        assertEquals(List.of(1), repository.getAvailableFile("f1").parts());
+        assertNull(repository.getFilePartWithPeers("f1", 3));
+        assertNull(repository.getFilePartWithPeers("f1", -1));
+    }
+
+    @Test
+    void removePeerReturnsAffectedFiles() {
+        repository.registerPeer("a", List.of(file("f1", 2), file("f2", 2)));
+        repository.registerPeer("b", List.of(withParts(file("f1", 2), List.of(1))));
+
+        assertEquals(List.of("f1", "f2"), repository.removePeer("a").stream().sorted().toList());
+        assertEquals(List.of(1), repository.getAvailableFile("f1").parts());
+        assertNull(repository.getAvailableFile("f2"));
+        assertEquals(List.of("f1"), repository.getFiles().stream().map(FileInfo::fileId).toList());
+        assertEquals(List.of(), repository.removePeer("a"));
+    }
+
+    @Test
+    void writesReachDatabaseInOrder() {
+        FileInfo file = file("f1", 6);
+        repository.registerPeer("a", List.of(withParts(file, List.of(0, 1))));
+        repository.registerPeer("b", List.of(withParts(file, List.of(4, 5))));
+        repository.addFileForPeer("a", withParts(file, List.of(2)));
+        repository.removePeer("b");
+        // close дожидается всех отложенных записей
+        repository.close();
+
+        assertEquals(List.of(0, 1, 2), database.getAvailableFile("f1").parts());
+        assertEquals(List.of("a"), database.getFilePartWithPeers("f1", 2).peers());
+    }
+}
@@ -0,0 +1,127 @@
+package org.torrents.server.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.torrents.shared.schemas.FileInfo;
+import org.torrents.shared.schemas.FilePart;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RepositoryImplTest {
+    @TempDir
+    Path dir;
+    private RepositoryImpl repository;
+
+    @BeforeEach
+    void setUp() {
+        DatabaseManager.initPool(dir.resolve("test.db").toString(), true);
+        DatabaseManager.runMigrations();
+        repository = new RepositoryImpl();
+    }
+
+    @AfterEach
+    void tearDown() {
+        DatabaseManager.closePool();
+    }
+
+    @Test
+    void toRangesMergesConsecutiveParts() {
+        assertRanges(List.of(), RepositoryImpl.toRanges(List.of()));
+        assertRanges(List.of(new int[]{5, 5}), RepositoryImpl.toRanges(List.of(5)));
+        assertRanges(List.of(new int[]{0, 3}), RepositoryImpl.toRanges(List.of(0, 1, 2, 3)));
+        // Порядок и повторы не важны
+        assertRanges(List.of(new int[]{0, 2}, new int[]{5, 6}, new int[]{9, 9}),
+                RepositoryImpl.toRanges(List.of(9, 6, 0, 2, 1, 5, 1, 6)));
+    }
+
+    @Test
+    void availabilityIsUnionOfPeerRanges() throws SQLException {
+        FileInfo file = file("f1", 10);
+        repository.registerPeer("a", List.of(withParts(file, List.of(0, 1, 2, 7))));
+        repository.registerPeer("b", List.of(withParts(file, List.of(2, 3, 4))));
+
+        // a: [0,2] и [7,7], b: [2,4]
+        assertEquals(3, countRanges());
+        assertEquals(List.of(0, 1, 2, 3, 4, 7), repository.getAvailableFile("f1").parts());
+        assertEquals(List.of(0, 1, 2, 3, 4, 7), repository.getFiles().getFirst().parts());
+        assertEquals(List.of("a"), peers("f1", 0));
+        assertEquals(List.of("a", "b"), peers("f1", 2));
+        assertEquals(List.of(), peers("f1", 5));
+        assertEquals("c7", repository.getFilePartWithPeers("f1", 7).checksum());
+    }
+
+    @Test
+    void rangeWithSameStartIsExtended() throws SQLException {
+        FileInfo file = file("f1", 10);
+        repository.registerPeer("a", List.of(withParts(file, List.of(0, 1))));
+        repository.addFileForPeer("a", withParts(file, List.of(0, 1, 2, 3)));
+        repository.addFileForPeer("a", withParts(file, List.of(0)));
+
+        assertEquals(1, countRanges());
+        assertEquals(List.of(0, 1, 2, 3), repository.getAvailableFile("f1").parts());
+    }
+
+    @Test
+    void removePeerDropsItsRanges() throws SQLException {
+        repository.registerPeer("a", List.of(file("f1", 4), file("f2", 2)));
+        repository.registerPeer("b", List.of(withParts(file("f1", 4), List.of(3))));
+
+        assertEquals(List.of("f1", "f2"), repository.removePeer("a").stream().sorted().toList());
+        assertEquals(1, countRanges());
+        assertEquals(List.of(3), repository.getAvailableFile("f1").parts());
+        assertNull(repository.getAvailableFile("f2"));
+        // Метаданные файла остаются
+        assertEquals(2, repository.getFile("f2").partsCount());
+
+        assertEquals(1, repository.removeAllPeers());
+        assertEquals(0, countRanges());
+        assertTrue(repository.getFiles().isEmpty());
+    }
+
+    private List<String> peers(String fileId, int partIndex) {
+        FilePart part = repository.getFilePartWithPeers(fileId, partIndex);
+        return part.peers().stream().sorted().toList();
+    }
+
+    private static int countRanges() throws SQLException {
+        try (Connection c = DatabaseManager.getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM peer_ranges")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    static FileInfo file(String fileId, int partsCount) {
+        List<Integer> parts = new ArrayList<>();
+        Map<Integer, String> checksums = new HashMap<>();
+        for (int i = 0; i < partsCount; i++) {
+            parts.add(i);
+            checksums.put(i, "c" + i);
+        }
+        return new FileInfo(fileId, partsCount * 262_144L, partsCount, parts, checksums, fileId + ".bin");
+    }
+
+    static FileInfo withParts(FileInfo file, List<Integer> parts) {
+        return new FileInfo(file.fileId(), file.size(), file.partsCount(), parts, file.partChecksums(), file.filename());
+    }
+
+    private static void assertRanges(List<int[]> expected, List<int[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
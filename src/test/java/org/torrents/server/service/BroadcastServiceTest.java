@@ -0,0 +1,180 @@
+package org.torrents.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.torrents.server.ClientHandler;
+import org.torrents.server.ServerConfig;
+import org.torrents.server.db.DatabaseManager;
+import org.torrents.server.db.IndexedRepository;
+import org.torrents.server.db.RepositoryImpl;
+import org.torrents.shared.Message;
+import org.torrents.shared.MessageType;
+import org.torrents.shared.ProtocolUtil;
+import org.torrents.shared.schemas.FileInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BroadcastServiceTest {
+    @TempDir
+    Path dir;
+    private IndexedRepository repository;
+    private FileService fileService;
+    private PeerService peerService;
+    private BroadcastService broadcastService;
+    private GatedOutputStream out;
+    private ClientHandler client;
+
+    @BeforeEach
+    void setUp() {
+        DatabaseManager.initPool(dir.resolve("test.db").toString(), true);
+        DatabaseManager.runMigrations();
+        repository = new IndexedRepository(new RepositoryImpl());
+        fileService = new FileService(repository);
+        peerService = new PeerService();
+        ServerConfig config = new ServerConfig();
+        config.broadcastDebounceMs = 10;
+        broadcastService = new BroadcastService(peerService, fileService, config);
+
+        out = new GatedOutputStream();
+        client = new ClientHandler("c1", out, InputStream.nullInputStream(), null, null, null);
+        peerService.addPeer("c1", client);
+    }
+
+    @AfterEach
+    void tearDown() {
+        out.open();
+        broadcastService.shutdown();
+        repository.close();
+        DatabaseManager.closePool();
+    }
+
+    @Test
+    void deltaBuiltAfterSnapshotIsDeliveredAfterIt() throws Exception {
+        fileService.registerNewPeer("c1", List.of(file("f1")));
+        broadcastService.sendCatalog(client);
+        // Снимок уже взят и пишется в сокет, когда каталог меняется ещё раз
+        assertTrue(out.writing.await(5, TimeUnit.SECONDS));
+        fileService.addFileForPeer("c1", file("f2"));
+        broadcastService.broadcastFileList();
+        Thread.sleep(200);
+        out.open();
+
+        assertClientCatchesUp(Set.of("f1", "f2"));
+    }
+
+    @Test
+    void snapshotRequestedWhileDeltasAreQueuedIsNotOlderThanThem() throws Exception {
+        fileService.registerNewPeer("c1", List.of(file("f1")));
+        broadcastService.broadcastFileList();
+        // Первое изменение пишется в сокет, следующее ждёт в очереди клиента
+        assertTrue(out.writing.await(5, TimeUnit.SECONDS));
+        fileService.addFileForPeer("c1", file("f2"));
+        broadcastService.broadcastFileList();
+        Thread.sleep(200);
+        broadcastService.sendCatalog(client);
+        out.open();
+
+        assertClientCatchesUp(Set.of("f1", "f2"));
+    }
+
+    /**
+     * Разбирает отправленные клиенту кадры так же, как ClientViewModel: изменения до первого FILE_LIST
+     * и уже учтённые в нём пропускаются, остальные должны идти цепочкой версий без разрывов
+     */
+    private void assertClientCatchesUp(Set<String> expectedFiles) throws Exception {
+        long expectedVersion = fileService.getCatalog().getVersion();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            long version = -1;
+            Set<String> files = new HashSet<>();
+            InputStream in = new ByteArrayInputStream(out.written());
+            Message message;
+            while ((message = ProtocolUtil.receiveMessage(in)) != null) {
+                Map<String, Object> payload = message.getPayload();
+                long messageVersion = ((Number) payload.get(ProtocolUtil.CATALOG_VERSION_KEY)).longValue();
+                if (message.getType() == MessageType.FILE_LIST) {
+                    version = messageVersion;
+                    files.clear();
+                    for (Object file : (List<?>) payload.get("files")) {
+                        files.add((String) ((Map<?, ?>) file).get("fileId"));
+                    }
+                    continue;
+                }
+                assertEquals(MessageType.FILE_LIST_UPDATE, message.getType());
+                if (version < 0 || messageVersion <= version) {
+                    continue;
+                }
+                assertEquals(version, ((Number) payload.get(ProtocolUtil.CATALOG_BASE_VERSION_KEY)).longValue(),
+                        "catalog update does not follow the version the client already has");
+                version = messageVersion;
+                for (Object file : (List<?>) payload.get("added")) {
+                    files.add((String) ((Map<?, ?>) file).get("fileId"));
+                }
+            }
+            if (version == expectedVersion) {
+                assertEquals(expectedFiles, files);
+                return;
+            }
+            assertTrue(System.nanoTime() < deadline, "client stuck at catalog version " + version
+                    + ", server is at " + expectedVersion);
+            Thread.sleep(20);
+        }
+    }
+
+    private static FileInfo file(String fileId) {
+        return new FileInfo(fileId, 262_144L, 1, List.of(0), Map.of(0, "c0"), fileId + ".bin");
+    }
+
+    /**
+     * Сокет клиента: первая запись блокируется, пока тест не откроет его
+     */
+    private static class GatedOutputStream extends OutputStream {
+        final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            synchronized (buffer) {
+                buffer.write(b, off, len);
+            }
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        byte[] written() {
+            synchronized (buffer) {
+                return buffer.toByteArray();
+            }
+        }
+    }
+}
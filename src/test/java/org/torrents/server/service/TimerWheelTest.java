@@ -0,0 +1,90 @@
+package org.torrents.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    // Маленькое колесо, чтобы сроки длиннее оборота проверяли счётчик оборотов
+    private final TimerWheel wheel = new TimerWheel("test-wheel", 5, 8);
+
+    @AfterEach
+    void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    void firesNotBeforeDeadline() throws InterruptedException {
+        long[] delays = {0, 7, 30, 120};
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        List<String> failures = new CopyOnWriteArrayList<>();
+        for (long delay : delays) {
+            long scheduled = System.nanoTime();
+            wheel.schedule(delay, () -> {
+                long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+                if (elapsedMs < delay) {
+                    failures.add("delay " + delay + " fired after " + elapsedMs + " ms");
+                }
+                fired.countDown();
+            });
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(), failures);
+    }
+
+    @Test
+    void deadlinesLongerThanOneRotationWaitForTheirRound() throws InterruptedException {
+        // Оборот колеса - 8 * 5 = 40 мс
+        AtomicLong firedAfter = new AtomicLong(-1);
+        CountDownLatch fired = new CountDownLatch(1);
+        long scheduled = System.nanoTime();
+        wheel.schedule(100, () -> {
+            firedAfter.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled));
+            fired.countDown();
+        });
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(firedAfter.get() >= 100, "fired after " + firedAfter.get() + " ms");
+        // Не на целый оборот позже (с запасом на загруженную машину)
+        assertTrue(firedAfter.get() < 100 + 500, "fired after " + firedAfter.get() + " ms");
+    }
+
+    @Test
+    void expiresInDeadlineOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(3);
+        wheel.schedule(90, () -> { order.add(3); fired.countDown(); });
+        wheel.schedule(10, () -> { order.add(1); fired.countDown(); });
+        wheel.schedule(50, () -> { order.add(2); fired.countDown(); });
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() throws InterruptedException {
+        AtomicBoolean cancelledRan = new AtomicBoolean(false);
+        CountDownLatch later = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(20, () -> cancelledRan.set(true));
+        wheel.schedule(60, later::countDown);
+        timeout.cancel();
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(5, () -> {
+            throw new IllegalStateException("task failure");
+        });
+        wheel.schedule(30, fired::countDown);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+}
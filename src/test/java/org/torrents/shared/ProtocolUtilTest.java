@@ -0,0 +1,144 @@
+package org.torrents.shared;
+
+import org.junit.jupiter.api.Test;
+import org.torrents.shared.schemas.ChunkHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProtocolUtilTest {
+
+    @Test
+    void binaryChunkFrameRoundTrip() throws IOException {
+        byte[] body = randomBytes(1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolUtil.sendBinaryChunk(out, new ChunkHeader("file-1", 7, body.length, "req-1"), body);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        Message message = ProtocolUtil.receiveMessage(in);
+        assertEquals(MessageType.SEND_CHUNK, message.getType());
+        assertEquals(Map.of("fileId", "file-1", "partIndex", 7, "length", body.length, "requestId", "req-1"),
+                message.getPayload());
+        // Тело идёт в потоке сразу за заголовком
+        assertArrayEquals(body, ProtocolUtil.readChunkData(in, body.length));
+        assertNull(ProtocolUtil.receiveMessage(in));
+    }
+
+    @Test
+    void binaryFileRequestIsPresentedAsRequestFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolUtil.sendBinaryFileRequest(out, "file-2", 3, "req-2");
+
+        Message message = ProtocolUtil.receiveMessage(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(MessageType.REQUEST_FILE, message.getType());
+        assertEquals("file-2", message.getPayload().get("fileId"));
+        assertEquals(List.of(3), message.getPayload().get("partsNeeded"));
+        assertEquals("req-2", message.getPayload().get("requestId"));
+    }
+
+    @Test
+    void jsonAndBinaryFramesInterleave() throws IOException {
+        Message register = new Message(MessageType.REGISTER, Map.of(ProtocolUtil.BINARY_FRAMES_KEY, true));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolUtil.sendMessage(out, register);
+        ProtocolUtil.sendBinaryFileRequest(out, "f", 0, "r");
+        ProtocolUtil.sendMessage(out, register);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(register, ProtocolUtil.receiveMessage(in));
+        assertEquals(MessageType.REQUEST_FILE, ProtocolUtil.receiveMessage(in).getType());
+        assertEquals(register, ProtocolUtil.receiveMessage(in));
+    }
+
+    @Test
+    void decodeFrameWaitsForCompleteHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolUtil.writeBinaryChunkHeader(out, new ChunkHeader("file-3", 1, 4, "req-3"));
+        ProtocolUtil.sendMessage(out, new Message(MessageType.FILE_LIST_REQUEST, Map.of()));
+        byte[] frames = out.toByteArray();
+        byte[] chunkHeader = Arrays.copyOf(frames, frames.length - ProtocolUtil.encodeMessage(
+                new Message(MessageType.FILE_LIST_REQUEST, Map.of())).length);
+
+        // Любой неполный префикс заголовка - ещё не кадр, позиция буфера не меняется
+        for (int n = 0; n < chunkHeader.length; n++) {
+            ByteBuffer partial = ByteBuffer.wrap(frames, 0, n);
+            assertNull(ProtocolUtil.decodeFrame(partial), "prefix of " + n + " bytes");
+            assertEquals(0, partial.position());
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(frames);
+        Message chunk = ProtocolUtil.decodeFrame(buffer);
+        assertEquals(MessageType.SEND_CHUNK, chunk.getType());
+        assertEquals(4, chunk.getPayload().get("length"));
+        assertEquals(chunkHeader.length, buffer.position());
+
+        Message request = ProtocolUtil.decodeFrame(buffer);
+        assertEquals(MessageType.FILE_LIST_REQUEST, request.getType());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void invalidMessageLengthIsRejected() {
+        ByteBuffer tooLong = ByteBuffer.allocate(4).putInt(ProtocolUtil.MAX_MESSAGE_LENGTH + 1).flip();
+        assertThrows(IOException.class, () -> ProtocolUtil.decodeFrame(tooLong));
+        byte[] zero = {0, 0, 0, 0};
+        assertThrows(IOException.class, () -> ProtocolUtil.receiveMessage(new ByteArrayInputStream(zero)));
+    }
+
+    @Test
+    void relayCopiesBodyAndCapture() throws IOException {
+        byte[] body = randomBytes(10_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] capture = new byte[body.length];
+
+        assertTrue(ProtocolUtil.relayChunkData(new ByteArrayInputStream(body), out, body.length, new byte[1024], capture));
+        assertArrayEquals(body, out.toByteArray());
+        assertArrayEquals(body, capture);
+    }
+
+    @Test
+    void relayDrainsSourceWhenTargetFails() throws IOException {
+        byte[] body = randomBytes(5000);
+        ByteArrayInputStream in = new ByteArrayInputStream(concat(body, new byte[]{42}));
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+
+        assertFalse(ProtocolUtil.relayChunkData(in, broken, body.length, new byte[512]));
+        // Тело вычитано полностью, следующий байт потока не тронут
+        assertEquals(42, in.read());
+    }
+
+    @Test
+    void relayFailsOnTruncatedSource() {
+        byte[] body = randomBytes(100);
+        assertThrows(EOFException.class, () -> ProtocolUtil.relayChunkData(
+                new ByteArrayInputStream(body), new ByteArrayOutputStream(), 200, new byte[64]));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}